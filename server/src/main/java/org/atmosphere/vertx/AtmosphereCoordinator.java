@@ -16,9 +16,12 @@
 package org.atmosphere.vertx;
 
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.http.ServerWebSocket;
 import org.atmosphere.container.NettyCometSupport;
 import org.atmosphere.cpr.Action;
@@ -28,15 +31,19 @@ import org.atmosphere.cpr.AtmosphereFramework;
 import org.atmosphere.cpr.AtmosphereInterceptor;
 import org.atmosphere.cpr.AtmosphereRequest;
 import org.atmosphere.cpr.AtmosphereRequestImpl;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.AtmosphereResourceEvent;
+import org.atmosphere.cpr.AtmosphereResourceEventListenerAdapter;
 import org.atmosphere.cpr.AtmosphereResourceImpl;
 import org.atmosphere.cpr.AtmosphereResponse;
 import org.atmosphere.cpr.AtmosphereResponseImpl;
+import org.atmosphere.cpr.Broadcaster;
 import org.atmosphere.cpr.FrameworkConfig;
+import org.atmosphere.cpr.PerRequestBroadcastFilter;
 import org.atmosphere.cpr.WebSocketProcessorFactory;
 import org.atmosphere.util.EndpointMapper;
 import org.atmosphere.util.ExecutorsFactory;
 import org.atmosphere.util.ServletProxyFactory;
-import org.atmosphere.websocket.WebSocket;
 import org.atmosphere.websocket.WebSocketProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,12 +51,18 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.atmosphere.cpr.HeaderConfig.*;
@@ -67,6 +80,20 @@ public class AtmosphereCoordinator {
     private final EndpointMapper<AtmosphereFramework.AtmosphereHandlerWrapper> mapper;
     private WebSocketProcessor webSocketProcessor;
     private final AsynchronousProcessor asynchronousProcessor;
+    private final ConcurrentMap<Context, ContextDispatcher> dispatchers = new ConcurrentHashMap<Context, ContextDispatcher>();
+    private boolean contextAffineWrites;
+    private long maxPendingWriteBytes = -1;
+    private boolean trustForwardedHeaders;
+    private final Set<VertxWebSocket> webSockets = ConcurrentHashMap.newKeySet();
+    private final Set<VertxAsyncIOWriter> writers = ConcurrentHashMap.newKeySet();
+    private final DrainMetrics drainMetrics = new DrainMetrics();
+    private final ConnectionRegistry registry = new ConnectionRegistry();
+    private LatencyTracer latencyTracer;
+    private ConflationPolicy conflationPolicy;
+    private Future<?> conflationTask;
+    private ReplayLogs replayLogs;
+    private EncodedMessageCache encodedMessageCache;
+    private volatile boolean draining;
 
     AtmosphereCoordinator() {
         framework = new AtmosphereFramework();
@@ -85,9 +112,18 @@ public class AtmosphereCoordinator {
             logger.trace("", t);
         }
 
-        if (b.broadcasterCache != null) {
+        if (b.replayLogs != null) {
+            replayLogs = b.replayLogs;
+            framework.getAtmosphereConfig().properties().put(ReplayLogs.class.getName(), replayLogs);
+            framework.addBroadcasterListener(replayLogs);
+            replayLogs.start(suspendTimer);
+        }
+
+        Class<?> broadcasterCache = b.broadcasterCache != null ? b.broadcasterCache
+                : b.replayLogs != null ? ReplayLogBroadcasterCache.class : null;
+        if (broadcasterCache != null) {
             try {
-                framework.setBroadcasterCacheClassName(b.broadcasterCache.getName());
+                framework.setBroadcasterCacheClassName(broadcasterCache.getName());
             } catch (Throwable t) {
                 logger.trace("", t);
             }
@@ -105,6 +141,21 @@ public class AtmosphereCoordinator {
             framework.addInitParameter(e.getKey(), e.getValue());
         }
 
+        contextAffineWrites = b.contextAffineWrites != null && b.contextAffineWrites;
+        maxPendingWriteBytes = b.maxPendingWriteBytes;
+        trustForwardedHeaders = b.trustForwardedHeaders;
+
+        if (b.conflationPolicy != null) {
+            conflation(b.conflationPolicy);
+        }
+
+        if (b.latencyTracingPath != null) {
+            latencyTracer = new LatencyTracer();
+            framework.addBroadcasterListener(latencyTracer);
+        }
+
+        encodedMessageCache = b.encodedMessageCache;
+
         ServletProxyFactory.getDefault().addMethodHandler("getServerInfo", new ServletProxyFactory.MethodHandler() {
             @Override
             public Object handle(Object clazz, Method method, Object[] methodObjects) {
@@ -112,7 +163,9 @@ public class AtmosphereCoordinator {
             }
         });
 
-        discover(b.resource);
+        if (b.resource != null) {
+            discover(b.resource);
+        }
 
         return this;
     }
@@ -144,13 +197,241 @@ public class AtmosphereCoordinator {
 
     public AtmosphereCoordinator shutdown() {
         framework.destroy();
+        if (replayLogs != null) {
+            replayLogs.close();
+        }
+        return this;
+    }
+
+    /**
+     * Gracefully shutdown the {@link AtmosphereFramework}. New connections and new broadcasts are refused, and the
+     * messages already queued by the {@link Broadcaster}s are delivered, waiting at most half the window. Then every
+     * WebSocket is closed with status 1001 and every suspended HTTP connection is completed with a retry hint, see
+     * {@link VertxAsyncIOWriter#drain(long)}. Closes are spread randomly over the rest of the window so clients don't
+     * all reconnect at the same time, and are delivered after the messages already written to each connection. Once
+     * the window elapsed, the suspend timer and the framework are destroyed.
+     *
+     * @param window            the time, in milliseconds, over which connections are closed.
+     * @param completionHandler invoked once the framework has been destroyed, or null.
+     * @return the {@link AtmosphereCoordinator}
+     */
+    public AtmosphereCoordinator drain(final long window, final Handler<Void> completionHandler) {
+        if (draining) {
+            return this;
+        }
+        draining = true;
+
+        final long retryAfter = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(window));
+        final long deadline = System.currentTimeMillis() + window;
+        drainMetrics.start(webSockets.size(), writers.size());
+        logger.info("Draining {} WebSockets and {} HTTP connections over {}ms",
+                webSockets.size(), writers.size(), window);
+
+        suspendTimer.execute(() -> {
+            flushBroadcasters(window / 2);
+            closeConnections(Math.max(0, deadline - System.currentTimeMillis()), retryAfter, completionHandler);
+        });
         return this;
     }
 
+    private void closeConnections(final long window, final long retryAfter, final Handler<Void> completionHandler) {
+        for (final VertxWebSocket w : webSockets) {
+            suspendTimer.schedule(() -> {
+                if (webSockets.remove(w)) {
+                    w.close((short) 1001);
+                    drainMetrics.webSocketClosed();
+                    logger.trace("Drain progress {}", drainMetrics);
+                }
+            }, jitter(window), TimeUnit.MILLISECONDS);
+        }
+
+        for (final VertxAsyncIOWriter w : writers) {
+            suspendTimer.schedule(() -> {
+                if (writers.remove(w)) {
+                    w.drain(retryAfter);
+                    drainMetrics.httpConnectionClosed();
+                    logger.trace("Drain progress {}", drainMetrics);
+                }
+            }, jitter(window), TimeUnit.MILLISECONDS);
+        }
+
+        suspendTimer.schedule(() -> {
+            try {
+                for (VertxWebSocket w : webSockets) {
+                    w.close((short) 1001);
+                }
+                for (VertxAsyncIOWriter w : writers) {
+                    w.drain(retryAfter);
+                }
+                framework.destroy();
+                if (replayLogs != null) {
+                    replayLogs.close();
+                }
+            } catch (Throwable t) {
+                logger.warn("", t);
+            } finally {
+                drainMetrics.terminate();
+                logger.info("Drain completed {}", drainMetrics);
+                if (completionHandler != null) {
+                    completionHandler.handle(null);
+                }
+                suspendTimer.shutdownNow();
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refuse new broadcasts, then wait until the messages queued by every {@link Broadcaster} have been delivered.
+     * A marker broadcasted last is delivered once the messages queued before it have been.
+     */
+    private void flushBroadcasters(long timeout) {
+        List<Future<Object>> flushed = new ArrayList<Future<Object>>();
+        try {
+            DrainFilter filter = new DrainFilter();
+            for (Broadcaster b : framework.getBroadcasterFactory().lookupAll()) {
+                b.getBroadcasterConfig().addFilter(filter);
+                flushed.add(b.broadcast(DrainFilter.MARKER));
+            }
+        } catch (Throwable t) {
+            logger.warn("Unable to flush the Broadcasters", t);
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Future<Object> f : flushed) {
+            try {
+                f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Broadcasters not flushed after {}ms, closing the connections", timeout);
+                return;
+            } catch (Exception e) {
+                logger.trace("", e);
+            }
+        }
+    }
+
+    /**
+     * Return true if {@link #drain(long, Handler)} has been invoked.
+     *
+     * @return true if draining
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Return the progress of the drain operation.
+     *
+     * @return the {@link DrainMetrics}
+     */
+    public DrainMetrics drainMetrics() {
+        return drainMetrics;
+    }
+
+    private static long jitter(long window) {
+        return window <= 0 ? 0 : ThreadLocalRandom.current().nextLong(window);
+    }
+
     public AtmosphereFramework framework() {
         return framework;
     }
 
+    /**
+     * Return the {@link ConnectionRegistry} of the live connections, which can be used to write to a client
+     * or a group of clients without iterating over a {@link org.atmosphere.cpr.Broadcaster}.
+     *
+     * @return the {@link ConnectionRegistry}
+     */
+    public ConnectionRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Conflate the messages of slow connections. Pending messages are written every {@link ConflationPolicy#interval()}
+     * if the connection accepts writes, or as soon as it does. Only the connections with pending messages are
+     * visited. Replaces the previous {@link ConflationPolicy}, for the connections created after the call.
+     *
+     * @param conflationPolicy the {@link ConflationPolicy}
+     * @return the {@link AtmosphereCoordinator}
+     */
+    public synchronized AtmosphereCoordinator conflation(ConflationPolicy conflationPolicy) {
+        if (conflationTask != null) {
+            conflationTask.cancel(false);
+            conflationTask = null;
+        }
+
+        this.conflationPolicy = conflationPolicy;
+        if (conflationPolicy.interval() > 0) {
+            conflationTask = suspendTimer.scheduleAtFixedRate(conflationPolicy::flushPending,
+                    conflationPolicy.interval(), conflationPolicy.interval(), TimeUnit.MILLISECONDS);
+        }
+        framework.addBroadcasterListener(conflationPolicy);
+        if (framework.getBroadcasterFactory() != null) {
+            for (Broadcaster b : framework.getBroadcasterFactory().lookupAll()) {
+                b.getBroadcasterConfig().addFilter(conflationPolicy);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Return the {@link LatencyTracer}, or null if latency tracing isn't enabled.
+     *
+     * @return the {@link LatencyTracer}, or null
+     */
+    public LatencyTracer latencyTracer() {
+        return latencyTracer;
+    }
+
+    /**
+     * Return the {@link ReplayLogs}, or null if broadcasted messages aren't logged.
+     *
+     * @return the {@link ReplayLogs}, or null
+     */
+    public ReplayLogs replayLogs() {
+        return replayLogs;
+    }
+
+    /**
+     * Share the encoded messages between connections, for the connections created after the call.
+     *
+     * @param encodedMessageCache the {@link EncodedMessageCache}, or null to encode the messages per connection
+     * @return the {@link AtmosphereCoordinator}
+     */
+    public AtmosphereCoordinator encodedMessageCache(EncodedMessageCache encodedMessageCache) {
+        this.encodedMessageCache = encodedMessageCache;
+        return this;
+    }
+
+    /**
+     * Enable or disable the delivery of writes through the {@link ContextDispatcher} of the event loop owning
+     * each connection.
+     *
+     * @param contextAffineWrites true to batch writes per event loop
+     * @return the {@link AtmosphereCoordinator}
+     */
+    public AtmosphereCoordinator contextAffineWrites(boolean contextAffineWrites) {
+        this.contextAffineWrites = contextAffineWrites;
+        return this;
+    }
+
+    /**
+     * Return the {@link ContextDispatcher} bound to the current Vert.x {@link Context}, or null if context
+     * affine writes are disabled or the caller doesn't run on a Vert.x thread.
+     *
+     * @return the {@link ContextDispatcher}, or null
+     */
+    protected ContextDispatcher dispatcher() {
+        if (!contextAffineWrites) {
+            return null;
+        }
+
+        Context context = Vertx.currentContext();
+        if (context == null) {
+            return null;
+        }
+        return dispatchers.computeIfAbsent(context, ContextDispatcher::new);
+    }
+
     /**
      * Route the {@link ServerWebSocket} into the {@link AtmosphereFramework}
      *
@@ -159,6 +440,12 @@ public class AtmosphereCoordinator {
      */
 
     public AtmosphereCoordinator route(ServerWebSocket webSocket) {
+        if (draining) {
+            drainMetrics.reject();
+            webSocket.reject();
+            return this;
+        }
+
         Map<String, List<String>> paramMap = new QueryStringDecoder("?" + webSocket.query()).parameters();
         Map<String, String[]> params = new LinkedHashMap<String, String[]>(paramMap.size());
         for (Map.Entry<String, List<String>> entry : paramMap.entrySet()) {
@@ -178,6 +465,7 @@ public class AtmosphereCoordinator {
         }
 
         AtmosphereRequest.Builder requestBuilder = new AtmosphereRequestImpl.Builder();
+        AtmosphereUtils.remote(requestBuilder, webSocket.headers(), webSocket.remoteAddress(), trustForwardedHeaders);
         AtmosphereRequest r = requestBuilder
                 .requestURI(webSocket.path())
                 .requestURL("http://0.0.0.0" + webSocket.path())
@@ -186,13 +474,22 @@ public class AtmosphereCoordinator {
                 .queryStrings(params)
                 .build();
 
-        final WebSocket w = new VertxWebSocket(framework.getAtmosphereConfig(), webSocket);
+        final VertxWebSocket w = new VertxWebSocket(framework.getAtmosphereConfig(), webSocket, dispatcher())
+                .conflation(conflationPolicy)
+                .encodedMessageCache(encodedMessageCache);
+        webSockets.add(w);
         try {
             webSocketProcessor.open(w, r, AtmosphereResponseImpl.newInstance(framework.getAtmosphereConfig(), r, w));
         } catch (IOException e) {
             logger.debug("", e);
         }
 
+        final AtmosphereResource resource = w.resource();
+        if (resource != null) {
+            registry.register(resource, w);
+            resource.addEventListener(new RegistryCleaner());
+        }
+
         webSocket.handler(new Handler<Buffer>() {
             @Override
             public void handle(Buffer data) {
@@ -202,12 +499,20 @@ public class AtmosphereCoordinator {
         webSocket.exceptionHandler(new Handler<Throwable>() {
             @Override
             public void handle(Throwable event) {
+                webSockets.remove(w);
+                if (resource != null) {
+                    registry.unregister(resource.uuid(), w);
+                }
                 w.close();
                 logger.debug("", event);
                 webSocketProcessor.close(w, 1006);
             }
         });
         webSocket.closeHandler(aVoid -> {
+            webSockets.remove(w);
+            if (resource != null) {
+                registry.unregister(resource.uuid(), w);
+            }
             w.close();
             webSocketProcessor.close(w, 1005);
         });
@@ -228,6 +533,11 @@ public class AtmosphereCoordinator {
 
             logger.debug("Transport {} action {}", transport, a);
             final Action action = (Action) request.getAttribute(NettyCometSupport.SUSPEND);
+            if (impl != null && action != null && action.type() == Action.TYPE.SUSPEND) {
+                registry.register(impl, w);
+                impl.addEventListener(new RegistryCleaner());
+            }
+
             if (action != null && action.type() == Action.TYPE.SUSPEND && action.timeout() != -1) {
                 final AtomicReference<Future<?>> f = new AtomicReference<>();
                 f.set(suspendTimer.scheduleAtFixedRate(new Runnable() {
@@ -253,15 +563,34 @@ public class AtmosphereCoordinator {
      * @return the {@link AtmosphereCoordinator}
      */
     public AtmosphereCoordinator route(final HttpServerRequest request) {
+        if (draining) {
+            drainMetrics.reject();
+            request.response()
+                    .setStatusCode(503)
+                    .putHeader("Retry-After", "1");
+            if (request.version() != HttpVersion.HTTP_2) {
+                request.response().putHeader("Connection", "close");
+            }
+            request.response().end();
+            return this;
+        }
+
         boolean async = false;
         try {
-            VertxAsyncIOWriter w = new VertxAsyncIOWriter(request);
-            final AtmosphereRequest r = AtmosphereUtils.request(request);
+            final VertxAsyncIOWriter w = new VertxAsyncIOWriter(request, dispatcher())
+                    .maxPendingBytes(maxPendingWriteBytes)
+                    .conflation(conflationPolicy)
+                    .encodedMessageCache(encodedMessageCache);
+            final AtmosphereRequest r = AtmosphereUtils.request(request, trustForwardedHeaders);
             final AtmosphereResponse res = new AtmosphereResponseImpl.Builder()
                     .asyncIOWriter(w)
                     .writeHeader(false)
                     .request(r).build();
 
+            writers.add(w);
+            request.response().endHandler(v -> closed(r, w));
+            request.response().closeHandler(v -> closed(r, w));
+
             request.response().exceptionHandler(new Handler<Throwable>() {
                 @Override
                 public void handle(Throwable event) {
@@ -298,4 +627,40 @@ public class AtmosphereCoordinator {
         }
         return this;
     }
+
+    private void closed(AtmosphereRequest r, VertxAsyncIOWriter w) {
+        writers.remove(w);
+        w.closed();
+        AtmosphereResource resource = (AtmosphereResource) r.getAttribute(FrameworkConfig.ATMOSPHERE_RESOURCE);
+        if (resource != null) {
+            registry.unregister(resource.uuid(), w);
+        }
+    }
+
+    private final class RegistryCleaner extends AtmosphereResourceEventListenerAdapter {
+        @Override
+        public void onDisconnect(AtmosphereResourceEvent event) {
+            registry.remove(event.getResource().uuid());
+        }
+    }
+
+    /**
+     * Abort the messages broadcasted once the drain started, except the marker used to flush the queues, which is
+     * never delivered to the {@link AtmosphereResource}s.
+     */
+    private final static class DrainFilter implements PerRequestBroadcastFilter {
+        private static final Object MARKER = new Object();
+
+        @Override
+        public BroadcastAction filter(String broadcasterId, Object originalMessage, Object message) {
+            return originalMessage == MARKER ? new BroadcastAction(message)
+                    : new BroadcastAction(BroadcastAction.ACTION.ABORT, message);
+        }
+
+        @Override
+        public BroadcastAction filter(String broadcasterId, AtmosphereResource r, Object originalMessage, Object message) {
+            return originalMessage == MARKER ? new BroadcastAction(BroadcastAction.ACTION.ABORT, message)
+                    : new BroadcastAction(message);
+        }
+    }
 }
@@ -16,7 +16,9 @@
 package org.atmosphere.vertx;
 
 import io.netty.handler.codec.http.HttpHeaders;
+import io.vertx.core.MultiMap;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.net.SocketAddress;
 import org.atmosphere.cpr.AtmosphereRequest;
 import org.atmosphere.cpr.AtmosphereRequestImpl;
 import org.slf4j.Logger;
@@ -32,7 +34,19 @@ public class AtmosphereUtils {
     private static Logger logger = LoggerFactory.getLogger(AtmosphereUtils.class);
 
     public final static AtmosphereRequest request(final HttpServerRequest request) throws Throwable {
-        final String base = getBaseUri(request);
+        return request(request, false);
+    }
+
+    /**
+     * Create an {@link AtmosphereRequest} from an {@link HttpServerRequest}.
+     *
+     * @param request               the {@link HttpServerRequest}
+     * @param trustForwardedHeaders true if the remote address, host and scheme must be read from the Forwarded and
+     *                              X-Forwarded-* headers set by a proxy, e.g when listening on a Unix domain socket.
+     * @return an {@link AtmosphereRequest}
+     */
+    public final static AtmosphereRequest request(final HttpServerRequest request, boolean trustForwardedHeaders) throws Throwable {
+        final String base = getBaseUri(request, trustForwardedHeaders);
         final URI requestUri = new URI(base.substring(0, base.length() - 1) + request.uri());
         String ct = "text/plain";
         if (request.headers().get("Content-Type") != null) {
@@ -62,10 +76,8 @@ public class AtmosphereUtils {
 
         final StringBuilder b = new StringBuilder();
 
-        int port = uri.getPort();
-        String uriString = uri.getPath();
-        String host = uri.getHost();
         AtmosphereRequest.Builder requestBuilder = new AtmosphereRequestImpl.Builder();
+        remote(requestBuilder, request.headers(), request.remoteAddress(), trustForwardedHeaders);
         final AtmosphereRequest r = requestBuilder.requestURI(url.substring(l))
                 .requestURL(u)
                 .pathInfo(url.substring(l))
@@ -76,9 +88,6 @@ public class AtmosphereUtils {
                 .destroyable(false)
                 .attributes(attributes)
                 .servletPath("")
-                .remotePort(port)
-                .remoteAddr(uriString)
-                .remoteHost(host)
                 .body(b.toString())
                 .queryStrings(qs)
                 .build();
@@ -97,8 +106,116 @@ public class AtmosphereUtils {
     }
 
     public static String getBaseUri(final HttpServerRequest request) {
-        return "http://" + request.headers().get(HttpHeaders.Names.HOST) + "/";
+        return getBaseUri(request, false);
+    }
+
+    public static String getBaseUri(final HttpServerRequest request, boolean trustForwardedHeaders) {
+        // HTTP/2 requests carry the :authority pseudo header instead of Host
+        String host = request.host();
+        if (host == null) {
+            host = request.headers().get(HttpHeaders.Names.HOST);
+        }
+        String scheme = request.scheme();
+
+        if (trustForwardedHeaders) {
+            MultiMap headers = request.headers();
+            String forwardedHost = forwarded(headers, "host", "X-Forwarded-Host");
+            if (forwardedHost != null) {
+                host = forwardedHost;
+            }
+            String forwardedProto = forwarded(headers, "proto", "X-Forwarded-Proto");
+            if (forwardedProto != null) {
+                scheme = forwardedProto;
+            }
+        }
+
+        // Requests received on a Unix domain socket may not carry any host.
+        return scheme + "://" + (host == null ? "localhost" : host) + "/";
+    }
 
+    /**
+     * Return the address of the client. When trusted, the Forwarded and X-Forwarded-For headers set by a proxy are
+     * used, otherwise the peer address of the connection.
+     *
+     * @param headers               the request's headers
+     * @param remoteAddress         the peer address of the connection, may be null
+     * @param trustForwardedHeaders true to read the Forwarded and X-Forwarded-For headers
+     * @return the address of the client, or null if unknown.
+     */
+    public static String remoteAddr(MultiMap headers, SocketAddress remoteAddress, boolean trustForwardedHeaders) {
+        if (trustForwardedHeaders) {
+            String forwardedFor = forwarded(headers, "for", "X-Forwarded-For");
+            if (forwardedFor != null) {
+                return forwardedFor;
+            }
+        }
+        return remoteAddress == null ? null : remoteAddress.host();
+    }
+
+    /**
+     * Set the remote address, host and port of the client. See {@link #remoteAddr(MultiMap, SocketAddress, boolean)}
+     *
+     * @param builder               the {@link AtmosphereRequest.Builder}
+     * @param headers               the request's headers
+     * @param remoteAddress         the peer address of the connection, may be null
+     * @param trustForwardedHeaders true to read the Forwarded and X-Forwarded-For headers
+     * @return the {@link AtmosphereRequest.Builder}
+     */
+    public static AtmosphereRequest.Builder remote(AtmosphereRequest.Builder builder, MultiMap headers,
+                                                   SocketAddress remoteAddress, boolean trustForwardedHeaders) {
+        String remoteAddr = remoteAddr(headers, remoteAddress, trustForwardedHeaders);
+        if (remoteAddr == null) {
+            // e.g a Unix domain socket without forwarded headers.
+            return builder;
+        }
+
+        builder.remoteAddr(remoteAddr).remoteHost(remoteAddr);
+        // The port of a forwarded client is unknown, the peer's port is the proxy's one.
+        if (remoteAddress != null && remoteAddr.equals(remoteAddress.host())) {
+            builder.remotePort(remoteAddress.port());
+        }
+        return builder;
+    }
+
+    /**
+     * Return the first value of a parameter of the RFC 7239 Forwarded header, falling back to the first value of
+     * the X-Forwarded-* header.
+     */
+    private static String forwarded(MultiMap headers, String parameter, String xForwardedHeader) {
+        String forwarded = headers.get("Forwarded");
+        if (forwarded != null) {
+            String first = forwarded.split(",")[0];
+            for (String pair : first.split(";")) {
+                String[] kv = pair.trim().split("=", 2);
+                if (kv.length == 2 && kv[0].trim().equalsIgnoreCase(parameter)) {
+                    String value = kv[1].trim();
+                    if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    if ("for".equals(parameter)) {
+                        value = stripPort(value);
+                    }
+                    return value.isEmpty() ? null : value;
+                }
+            }
+        }
+
+        String value = headers.get(xForwardedHeader);
+        if (value == null) {
+            return null;
+        }
+        value = value.split(",")[0].trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    // for="[2001:db8::1]:4711" or for="192.0.2.43:47011"
+    private static String stripPort(String value) {
+        if (value.startsWith("[")) {
+            int end = value.indexOf(']');
+            return end > 0 ? value.substring(1, end) : value;
+        }
+        int colon = value.indexOf(':');
+        return colon > 0 && colon == value.lastIndexOf(':') ? value.substring(0, colon) : value;
     }
 
     public static Map<String, String> getHeaders(final HttpServerRequest request) {
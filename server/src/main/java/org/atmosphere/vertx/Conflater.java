@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * The messages pending for a connection, at most one per key. See {@link ConflationPolicy}.
+ */
+final class Conflater {
+
+    // Replacing the value of a key keeps its position, so keys are flushed in the order they first became pending.
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+    private final ConflationPolicy policy;
+    private final Runnable flush;
+    private volatile Tag tag;
+
+    /**
+     * @param policy the {@link ConflationPolicy}, tracking the connections with pending messages
+     * @param flush  the flush of the connection
+     */
+    Conflater(ConflationPolicy policy, Runnable flush) {
+        this.policy = policy;
+        this.flush = flush;
+    }
+
+    /**
+     * Tag the connection with the {@link org.atmosphere.cpr.Broadcaster} delivering a message, when the message is
+     * about to be written.
+     */
+    void tag(String broadcasterId, Object message) {
+        tag = new Tag(broadcasterId, message);
+    }
+
+    /**
+     * Return the {@link org.atmosphere.cpr.Broadcaster} which tagged the message, or null if the message hasn't been
+     * delivered by a conflated {@link org.atmosphere.cpr.Broadcaster}. The tag is reset.
+     */
+    String take(Object message) {
+        Tag t = tag;
+        if (t == null) {
+            return null;
+        }
+        tag = null;
+        return t.message == message ? t.broadcasterId : null;
+    }
+
+    /**
+     * Keep the message if the connection doesn't accept writes, or if messages are already pending.
+     *
+     * @return true if the message has been kept, false if it must be written
+     */
+    synchronized boolean offer(String key, String message, BooleanSupplier writable) {
+        if (pending.isEmpty() && writable.getAsBoolean()) {
+            return false;
+        }
+        pending.put(key, message);
+        policy.pending(flush);
+        return true;
+    }
+
+    /**
+     * Write the pending messages while the connection accepts writes.
+     */
+    synchronized void flush(BooleanSupplier writable, Consumer<String> write) {
+        Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator();
+        while (it.hasNext() && writable.getAsBoolean()) {
+            String message = it.next().getValue();
+            it.remove();
+            write.accept(message);
+        }
+        if (pending.isEmpty()) {
+            policy.flushed(flush);
+        }
+    }
+
+    /**
+     * Discard the pending messages, e.g once the connection is closed.
+     */
+    synchronized void clear() {
+        tag = null;
+        pending.clear();
+        policy.flushed(flush);
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    private final static class Tag {
+        private final String broadcasterId;
+        private final Object message;
+
+        private Tag(String broadcasterId, Object message) {
+            this.broadcasterId = broadcasterId;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.atmosphere.cpr.AsyncIOWriter;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.Broadcaster;
+import org.atmosphere.cpr.BroadcasterListenerAdapter;
+import org.atmosphere.cpr.PerRequestBroadcastFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Configure which {@link Broadcaster}s deliver only the latest value per key to slow connections. When a
+ * {@link VertxWebSocket}, or a streaming {@link VertxAsyncIOWriter}, doesn't accept more writes, messages are kept
+ * in a map containing at most one message per key, a newer message replacing the pending one. Pending messages are
+ * written once the connection accepts writes again, or every {@link #interval()}. Connections accepting writes
+ * aren't affected.
+ * <p/>
+ * When a message is delivered, the connection is tagged with the {@link Broadcaster} delivering it, so the key of a
+ * connection subscribed to many {@link Broadcaster}s is always computed by the sending {@link Broadcaster}'s
+ * function. Messages written otherwise, or transformed by a {@link org.atmosphere.cpr.BroadcastFilter} added after
+ * this policy, are never conflated.
+ */
+public class ConflationPolicy extends BroadcasterListenerAdapter implements PerRequestBroadcastFilter {
+    private static final Logger logger = LoggerFactory.getLogger(ConflationPolicy.class);
+
+    private final Map<String, Function<String, String>> keys = new ConcurrentHashMap<String, Function<String, String>>();
+    private long interval = 100;
+    // The flush of every connection with pending messages, so connections without any aren't visited.
+    private final Set<Runnable> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Conflate the messages of a {@link Broadcaster}.
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()}
+     * @param key           return the key of a message, e.g the symbol of a quote, or null if the message must
+     *                      never be conflated.
+     * @return this
+     */
+    public ConflationPolicy conflate(String broadcasterId, Function<String, String> key) {
+        keys.put(broadcasterId, key);
+        return this;
+    }
+
+    /**
+     * The interval, in milliseconds, at which pending messages are written if the connection accepts writes.
+     * Default is 100.
+     *
+     * @param interval the interval in milliseconds
+     * @return this
+     */
+    public ConflationPolicy interval(long interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    public long interval() {
+        return interval;
+    }
+
+    /**
+     * Write the pending messages of the connections accepting writes.
+     */
+    public void flushPending() {
+        for (Runnable flush : pending) {
+            try {
+                flush.run();
+            } catch (Throwable t) {
+                // e.g the connection has been closed, the other connections must still be flushed.
+                pending.remove(flush);
+                logger.trace("", t);
+            }
+        }
+    }
+
+    @Override
+    public void onPostCreate(Broadcaster b) {
+        b.getBroadcasterConfig().addFilter(this);
+    }
+
+    /**
+     * Invoked when the message is broadcasted.
+     */
+    @Override
+    public BroadcastAction filter(String broadcasterId, Object originalMessage, Object message) {
+        return new BroadcastAction(message);
+    }
+
+    /**
+     * Invoked when the message is delivered to an {@link AtmosphereResource}, tag its connection with the
+     * {@link Broadcaster} if its messages are conflated.
+     */
+    @Override
+    public BroadcastAction filter(String broadcasterId, AtmosphereResource r, Object originalMessage, Object message) {
+        if (message instanceof String && keys.containsKey(broadcasterId)) {
+            AsyncIOWriter w = r.getResponse().getAsyncIOWriter();
+            Conflater conflater = null;
+            if (w instanceof VertxWebSocket) {
+                conflater = VertxWebSocket.class.cast(w).conflater();
+            } else if (w instanceof VertxAsyncIOWriter) {
+                conflater = VertxAsyncIOWriter.class.cast(w).conflater();
+            }
+            if (conflater != null) {
+                conflater.tag(broadcasterId, message);
+            }
+        }
+        return new BroadcastAction(message);
+    }
+
+    void pending(Runnable flush) {
+        pending.add(flush);
+    }
+
+    void flushed(Runnable flush) {
+        pending.remove(flush);
+    }
+
+    /**
+     * Return the key of a message delivered by a {@link Broadcaster}, or null if it must not be conflated.
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()} of the {@link Broadcaster} delivering the message
+     * @param message       the message
+     * @return the key, or null
+     */
+    public String key(String broadcasterId, String message) {
+        if (broadcasterId == null) {
+            return null;
+        }
+
+        Function<String, String> key = keys.get(broadcasterId);
+        return key == null ? null : key.apply(message);
+    }
+}
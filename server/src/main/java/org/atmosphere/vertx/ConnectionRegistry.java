@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.atmosphere.cpr.AtmosphereResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A registry of the live connections, indexed by their Atmosphere tracking id (the {@link AtmosphereResource#uuid()})
+ * and by user defined keys, e.g a user name bound to all the connections of that user. Messages sent using
+ * {@link #send(String, String)} and {@link #sendToKey(String, String)} are written directly to the
+ * {@link VertxWebSocket} or {@link VertxAsyncIOWriter}, without looking up and iterating over a
+ * {@link org.atmosphere.cpr.Broadcaster}'s resources.
+ * <p/>
+ * All operations are non blocking lookups on {@link ConcurrentHashMap}, and are safe under concurrent
+ * connection and disconnection. Writes hold the monitor of the {@link AtmosphereResource}, like a
+ * {@link org.atmosphere.cpr.Broadcaster} delivering a message, so a direct send never runs concurrently with a
+ * broadcast to the same connection.
+ */
+public class ConnectionRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionRegistry.class);
+
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+    private final ConcurrentMap<String, Set<String>> keys = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Set<String>> bindings = new ConcurrentHashMap<String, Set<String>>();
+    // Tracking ids registered and not removed yet, including long-polling ones between two requests.
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Register the {@link VertxWebSocket} of an {@link AtmosphereResource}.
+     *
+     * @param resource  the {@link AtmosphereResource}
+     * @param webSocket the {@link VertxWebSocket}
+     * @return this
+     */
+    public ConnectionRegistry register(AtmosphereResource resource, VertxWebSocket webSocket) {
+        registered.add(resource.uuid());
+        connections.put(resource.uuid(), new Connection(resource, webSocket, null));
+        return this;
+    }
+
+    /**
+     * Register the {@link VertxAsyncIOWriter} of a suspended {@link AtmosphereResource}. With long-polling, the
+     * writer of the previous request is replaced.
+     *
+     * @param resource the {@link AtmosphereResource}
+     * @param writer   the {@link VertxAsyncIOWriter}
+     * @return this
+     */
+    public ConnectionRegistry register(AtmosphereResource resource, VertxAsyncIOWriter writer) {
+        registered.add(resource.uuid());
+        connections.put(resource.uuid(), new Connection(resource, null, writer));
+        return this;
+    }
+
+    /**
+     * Unregister the connection, if it is still the one associated with the tracking id. Keys bound to the
+     * tracking id are kept, see {@link #remove(String)}.
+     *
+     * @param uuid       the tracking id
+     * @param connection the {@link VertxWebSocket} or {@link VertxAsyncIOWriter}
+     * @return this
+     */
+    public ConnectionRegistry unregister(String uuid, Object connection) {
+        connections.computeIfPresent(uuid, (k, c) -> c.webSocket == connection || c.writer == connection ? null : c);
+        return this;
+    }
+
+    /**
+     * Remove the tracking id, its connection and all its bound keys.
+     *
+     * @param uuid the tracking id
+     * @return this
+     */
+    public ConnectionRegistry remove(String uuid) {
+        registered.remove(uuid);
+        connections.remove(uuid);
+        Set<String> bound = bindings.remove(uuid);
+        if (bound != null) {
+            for (String key : bound) {
+                unbind(key, uuid, false);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Bind a user defined key, e.g a user name or a group, to a tracking id. A key can be bound to many tracking ids.
+     * Tracking ids which aren't registered, or have been removed, aren't bound.
+     *
+     * @param key  the key
+     * @param uuid the tracking id
+     * @return this
+     */
+    public ConnectionRegistry bind(String key, String uuid) {
+        if (!registered.contains(uuid)) {
+            logger.debug("Unable to bind {} to {}, not registered", key, uuid);
+            return this;
+        }
+
+        keys.compute(key, (k, uuids) -> {
+            if (uuids == null) {
+                uuids = ConcurrentHashMap.newKeySet();
+            }
+            uuids.add(uuid);
+            return uuids;
+        });
+        bindings.compute(uuid, (k, bound) -> {
+            if (bound == null) {
+                bound = ConcurrentHashMap.newKeySet();
+            }
+            bound.add(key);
+            return bound;
+        });
+
+        // remove(uuid) may have run concurrently, after the bindings have been checked but before they were added.
+        if (!registered.contains(uuid)) {
+            unbind(key, uuid);
+        }
+        return this;
+    }
+
+    /**
+     * Unbind a key from a tracking id.
+     *
+     * @param key  the key
+     * @param uuid the tracking id
+     * @return this
+     */
+    public ConnectionRegistry unbind(String key, String uuid) {
+        return unbind(key, uuid, true);
+    }
+
+    private ConnectionRegistry unbind(String key, String uuid, boolean removeBinding) {
+        keys.computeIfPresent(key, (k, uuids) -> {
+            uuids.remove(uuid);
+            return uuids.isEmpty() ? null : uuids;
+        });
+        if (removeBinding) {
+            bindings.computeIfPresent(uuid, (k, bound) -> {
+                bound.remove(key);
+                return bound.isEmpty() ? null : bound;
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Write a message to the connection associated with the tracking id.
+     *
+     * @param uuid    the tracking id
+     * @param message the message
+     * @return true if the message has been written
+     */
+    public boolean send(String uuid, String message) {
+        Connection c = connections.get(uuid);
+        return c != null && c.write(message);
+    }
+
+    /**
+     * Write a message to all connections bound to the key.
+     *
+     * @param key     the key
+     * @param message the message
+     * @return the number of connections the message has been written to
+     */
+    public int sendToKey(String key, String message) {
+        Set<String> uuids = keys.get(key);
+        if (uuids == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (String uuid : uuids) {
+            if (send(uuid, message)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the {@link AtmosphereResource} associated with the tracking id, or null.
+     *
+     * @param uuid the tracking id
+     * @return the {@link AtmosphereResource}, or null
+     */
+    public AtmosphereResource resource(String uuid) {
+        Connection c = connections.get(uuid);
+        return c == null ? null : c.resource;
+    }
+
+    /**
+     * Return the tracking ids bound to the key.
+     *
+     * @param key the key
+     * @return the tracking ids
+     */
+    public Set<String> uuids(String key) {
+        Set<String> uuids = keys.get(key);
+        return uuids == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(uuids);
+    }
+
+    /**
+     * Return the number of live connections.
+     *
+     * @return the number of live connections
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    private final static class Connection {
+        private final AtmosphereResource resource;
+        private final VertxWebSocket webSocket;
+        private final VertxAsyncIOWriter writer;
+
+        private Connection(AtmosphereResource resource, VertxWebSocket webSocket, VertxAsyncIOWriter writer) {
+            this.resource = resource;
+            this.webSocket = webSocket;
+            this.writer = writer;
+        }
+
+        private boolean write(String message) {
+            try {
+                // The writers aren't thread safe, the Broadcasters write to a resource holding its monitor.
+                synchronized (resource) {
+                    if (webSocket != null) {
+                        if (!webSocket.isOpen()) {
+                            return false;
+                        }
+                        // Like HTTP connections, go through the AtmosphereInterceptors, e.g to track the message size.
+                        webSocket.write(resource.getResponse(), message);
+                    } else {
+                        if (writer.isClosed()) {
+                            return false;
+                        }
+                        writer.write(resource.getResponse(), message);
+                    }
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                // e.g the connection has been closed concurrently, the other connections of a key must be written.
+                logger.debug("Unable to write to {}", resource.uuid(), e);
+                return false;
+            }
+        }
+    }
+}
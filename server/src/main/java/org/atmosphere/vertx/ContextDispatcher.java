@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Batch writes issued outside of a Vert.x {@link Context} so that a broadcast delivered to many connections
+ * owned by the same event loop is executed as a single task on that loop instead of one task per write.
+ * <p/>
+ * One instance is shared by every connection bound to the same {@link Context}. Writes submitted from the owning
+ * event loop are executed immediately, after any pending write, to preserve ordering.
+ */
+public class ContextDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ContextDispatcher.class);
+
+    private final Context context;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    public ContextDispatcher(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Execute the write on the owning event loop, batching it with any other write submitted before the loop
+     * picks up the task.
+     *
+     * @param write the write to execute
+     */
+    public void execute(Runnable write) {
+        if (Vertx.currentContext() == context) {
+            drain();
+            run(write);
+            return;
+        }
+
+        pending.offer(write);
+        if (scheduled.compareAndSet(false, true)) {
+            context.runOnContext(v -> drain());
+        }
+    }
+
+    /**
+     * Return the {@link Context} this dispatcher is bound to.
+     *
+     * @return the {@link Context}
+     */
+    public Context context() {
+        return context;
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        Runnable write;
+        while ((write = pending.poll()) != null) {
+            run(write);
+        }
+    }
+
+    private void run(Runnable write) {
+        try {
+            write.run();
+        } catch (Throwable t) {
+            logger.debug("", t);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of an {@link AtmosphereCoordinator#drain(long, io.vertx.core.Handler)} operation.
+ */
+public class DrainMetrics {
+
+    public enum State {RUNNING, DRAINING, TERMINATED}
+
+    private volatile State state = State.RUNNING;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger webSockets = new AtomicInteger();
+    private final AtomicInteger httpConnections = new AtomicInteger();
+    private final AtomicInteger closedWebSockets = new AtomicInteger();
+    private final AtomicInteger closedHttpConnections = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    void start(int webSockets, int httpConnections) {
+        this.webSockets.set(webSockets);
+        this.httpConnections.set(httpConnections);
+        started.set(System.currentTimeMillis());
+        state = State.DRAINING;
+    }
+
+    void webSocketClosed() {
+        closedWebSockets.incrementAndGet();
+    }
+
+    void httpConnectionClosed() {
+        closedHttpConnections.incrementAndGet();
+    }
+
+    void reject() {
+        rejected.incrementAndGet();
+    }
+
+    void terminate() {
+        completed.set(System.currentTimeMillis());
+        state = State.TERMINATED;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * The number of WebSockets open when the drain started.
+     */
+    public int webSockets() {
+        return webSockets.get();
+    }
+
+    /**
+     * The number of suspended HTTP connections (long-polling, streaming, sse) when the drain started.
+     */
+    public int httpConnections() {
+        return httpConnections.get();
+    }
+
+    public int closedWebSockets() {
+        return closedWebSockets.get();
+    }
+
+    public int closedHttpConnections() {
+        return closedHttpConnections.get();
+    }
+
+    /**
+     * The number of connections refused since the drain started.
+     */
+    public int rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * The number of connections still waiting to be closed.
+     */
+    public int remaining() {
+        return Math.max(0, webSockets() + httpConnections() - closedWebSockets() - closedHttpConnections());
+    }
+
+    /**
+     * The time spent draining, in milliseconds.
+     */
+    public long elapsed() {
+        long start = started.get();
+        if (start == 0) {
+            return 0;
+        }
+        long end = completed.get();
+        return (end == 0 ? System.currentTimeMillis() : end) - start;
+    }
+
+    @Override
+    public String toString() {
+        return "DrainMetrics{" +
+                "state=" + state +
+                ", webSockets=" + closedWebSockets() + "/" + webSockets() +
+                ", httpConnections=" + closedHttpConnections() + "/" + httpConnections() +
+                ", rejected=" + rejected() +
+                ", elapsed=" + elapsed() +
+                '}';
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Encode a message once for all the connections it is delivered to, so the writers reuse the same bytes instead of
+ * encoding it once per connection. Messages are looked up by identity, so a lookup costs the same whatever the size
+ * of the message: a broadcasted String is delivered as is to every {@link org.atmosphere.cpr.AtmosphereResource},
+ * and so are the messages of a {@link MemoizingEncoder}.
+ * <p/>
+ * The output of the {@link org.atmosphere.cpr.AsyncIOInterceptor}s, e.g the length prefix of the
+ * {@link org.atmosphere.interceptor.TrackMessageSizeInterceptor}, is kept as well, keyed by the message, the charset
+ * and the identity of the interceptors. An interceptor shared by all connections must therefore produce the same
+ * output for every connection, while interceptors created per connection never share their output.
+ * <p/>
+ * The cache holds a fixed number of entries and never blocks, a message written to a single connection replaces
+ * an older entry. The returned arrays are shared and must not be modified. Set on a {@link VertxAtmosphere}
+ * using {@link VertxAtmosphere.Builder#encodedMessageCache(EncodedMessageCache)}.
+ */
+public class EncodedMessageCache {
+
+    private final IdentityCache<byte[]> encoded;
+    private final IdentityCache<byte[]> transformed;
+
+    public EncodedMessageCache() {
+        this(64);
+    }
+
+    /**
+     * @param slots the number of messages kept, rounded up to a power of two
+     */
+    public EncodedMessageCache(int slots) {
+        encoded = new IdentityCache<byte[]>(slots);
+        transformed = new IdentityCache<byte[]>(slots);
+    }
+
+    /**
+     * Return the encoded message.
+     *
+     * @param message the message
+     * @param charset the name of the charset
+     * @return the encoded bytes, shared with every caller encoding the same message
+     * @throws UnsupportedEncodingException if the charset isn't supported
+     */
+    public byte[] encode(String message, String charset) throws UnsupportedEncodingException {
+        String name = charset.toUpperCase();
+        byte[] b = encoded.get(message, name);
+        return b != null ? b : encoded.put(message, name, message.getBytes(charset));
+    }
+
+    /**
+     * Return the message transformed by the interceptors of a writer, computing it if it isn't known.
+     */
+    byte[] transform(String message, String charset, Collection<?> interceptors, Transform transform) throws IOException {
+        List<Object> qualifier = new ArrayList<Object>(interceptors.size() + 1);
+        qualifier.add(charset.toUpperCase());
+        qualifier.addAll(interceptors);
+
+        byte[] b = transformed.get(message, qualifier);
+        return b != null ? b : transformed.put(message, qualifier, transform.apply());
+    }
+
+    interface Transform {
+        byte[] apply() throws IOException;
+    }
+}
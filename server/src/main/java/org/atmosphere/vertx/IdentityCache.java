@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed number of values looked up by the identity of their key, so a lookup costs the same whatever the size of
+ * the key. A new value replaces the one in its slot, and lookups never block.
+ */
+final class IdentityCache<V> {
+
+    private final AtomicReferenceArray<Entry<V>> entries;
+    private final int mask;
+
+    /**
+     * @param slots the number of values kept, rounded up to a power of two
+     */
+    IdentityCache(int slots) {
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        entries = new AtomicReferenceArray<Entry<V>>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Return the value of the key, or null.
+     *
+     * @param key       the key, compared by identity
+     * @param qualifier qualifies the key, compared using equals, or null
+     * @return the value, or null
+     */
+    V get(Object key, Object qualifier) {
+        Entry<V> e = entries.get(slot(key));
+        return e != null && e.key == key && Objects.equals(e.qualifier, qualifier) ? e.value : null;
+    }
+
+    V put(Object key, Object qualifier, V value) {
+        entries.set(slot(key), new Entry<V>(key, qualifier, value));
+        return value;
+    }
+
+    private int slot(Object key) {
+        return System.identityHashCode(key) & mask;
+    }
+
+    private final static class Entry<V> {
+        private final Object key;
+        private final Object qualifier;
+        private final V value;
+
+        private Entry(Object key, Object qualifier, V value) {
+            this.key = key;
+            this.qualifier = qualifier;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+/**
+ * The time a broadcasted message has been delivered to a connection, set by the {@link LatencyTracer} and consumed
+ * by the next write of that connection. The mark is only recorded if that write is the delivered message: a delivery
+ * aborted by a later {@link org.atmosphere.cpr.BroadcastFilter} leaves a mark which the next write discards.
+ */
+final class LatencyMark {
+    private volatile Mark mark;
+
+    void mark(LatencyTracer.BroadcasterLatency latency, long time, Object message) {
+        mark = new Mark(latency, time, message);
+    }
+
+    /**
+     * Record the time elapsed since {@link #mark(LatencyTracer.BroadcasterLatency, long, Object)} and reset this mark.
+     *
+     * @param delivered the message being delivered to the connection, e.g
+     *                  {@link org.atmosphere.cpr.AtmosphereResourceEvent#getMessage()}
+     * @return the {@link LatencyTracer.BroadcasterLatency} to record the outbound latency into, or null if the
+     * connection hasn't been marked with the delivered message.
+     */
+    LatencyTracer.BroadcasterLatency take(Object delivered) {
+        Mark m = mark;
+        if (m == null) {
+            return null;
+        }
+        mark = null;
+        if (m.message != delivered) {
+            return null;
+        }
+        m.latency.recordTransform(System.nanoTime() - m.time);
+        return m.latency;
+    }
+
+    private final static class Mark {
+        private final LatencyTracer.BroadcasterLatency latency;
+        private final long time;
+        private final Object message;
+
+        private Mark(LatencyTracer.BroadcasterLatency latency, long time, Object message) {
+            this.latency = latency;
+            this.time = time;
+            this.message = message;
+        }
+    }
+}
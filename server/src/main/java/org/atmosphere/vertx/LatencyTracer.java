@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.atmosphere.cpr.AsyncIOWriter;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.Broadcaster;
+import org.atmosphere.cpr.BroadcasterListenerAdapter;
+import org.atmosphere.cpr.PerRequestBroadcastFilter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Record, per {@link Broadcaster}, the latency of every message delivered to a Vert.x connection:
+ * <ul>
+ * <li>queue: from {@link Broadcaster#broadcast(Object)} to the delivery to the {@link AtmosphereResource}</li>
+ * <li>transform: from the delivery to the {@link AtmosphereResource} to the hand-off to Vert.x, which includes the
+ * {@link org.atmosphere.cpr.AtmosphereInterceptor}s</li>
+ * <li>outbound: from the hand-off to Vert.x to the write executed on the connection's event loop</li>
+ * </ul>
+ * Values are recorded in nanoseconds using HdrHistogram {@link Recorder}s, which don't allocate when recording.
+ * The only allocations are the {@link BroadcastAction} every {@link org.atmosphere.cpr.BroadcastFilter} must return,
+ * and the mark of the connection, matched against the message it writes so an aborted delivery records nothing.
+ */
+public class LatencyTracer extends BroadcasterListenerAdapter implements PerRequestBroadcastFilter {
+
+    private static final int SLOTS = 64;
+
+    private final ConcurrentMap<String, BroadcasterLatency> latencies = new ConcurrentHashMap<String, BroadcasterLatency>();
+
+    @Override
+    public void onPostCreate(Broadcaster b) {
+        b.getBroadcasterConfig().addFilter(this);
+    }
+
+    @Override
+    public void onPreDestroy(Broadcaster b) {
+        latencies.remove(b.getID());
+    }
+
+    /**
+     * Invoked when the message is broadcasted.
+     */
+    @Override
+    public BroadcastAction filter(String broadcasterId, Object originalMessage, Object message) {
+        latency(broadcasterId).enqueued(originalMessage, System.nanoTime());
+        return new BroadcastAction(message);
+    }
+
+    /**
+     * Invoked when the message is delivered to an {@link AtmosphereResource}.
+     */
+    @Override
+    public BroadcastAction filter(String broadcasterId, AtmosphereResource r, Object originalMessage, Object message) {
+        long now = System.nanoTime();
+        BroadcasterLatency latency = latency(broadcasterId);
+        latency.delivered(originalMessage, now);
+
+        AsyncIOWriter w = r.getResponse().getAsyncIOWriter();
+        if (w instanceof VertxWebSocket) {
+            VertxWebSocket.class.cast(w).latencyMark().mark(latency, now, message);
+        } else if (w instanceof VertxAsyncIOWriter) {
+            VertxAsyncIOWriter.class.cast(w).latencyMark().mark(latency, now, message);
+        }
+        return new BroadcastAction(message);
+    }
+
+    /**
+     * Return the latency of a {@link Broadcaster}
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()}
+     * @return the {@link BroadcasterLatency}
+     */
+    public BroadcasterLatency latency(String broadcasterId) {
+        BroadcasterLatency latency = latencies.get(broadcasterId);
+        if (latency == null) {
+            latency = latencies.computeIfAbsent(broadcasterId, id -> new BroadcasterLatency());
+        }
+        return latency;
+    }
+
+    /**
+     * Return the latency of every {@link Broadcaster} as JSON, in microseconds.
+     *
+     * @param reset true to reset the histograms once read.
+     * @return a {@link JsonObject}
+     */
+    public JsonObject toJson(boolean reset) {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, BroadcasterLatency> e : latencies.entrySet()) {
+            json.put(e.getKey(), e.getValue().toJson(reset));
+        }
+        return json;
+    }
+
+    /**
+     * A {@link Handler} serving {@link #toJson(boolean)}. Histograms are reset when the reset query param is true.
+     *
+     * @return a {@link Handler}
+     */
+    public Handler<RoutingContext> handler() {
+        return ctx -> ctx.response()
+                .putHeader("Content-Type", "application/json")
+                .end(toJson(Boolean.parseBoolean(ctx.request().getParam("reset"))).encodePrettily());
+    }
+
+    /**
+     * The latency histograms of a {@link Broadcaster}.
+     */
+    public final static class BroadcasterLatency {
+        private final Recorder queue = new Recorder(3);
+        private final Recorder transform = new Recorder(3);
+        private final Recorder outbound = new Recorder(3);
+        private final Histogram queueHistogram = new Histogram(3);
+        private final Histogram transformHistogram = new Histogram(3);
+        private final Histogram outboundHistogram = new Histogram(3);
+
+        // Broadcast time of the last messages, indexed by identity. A slot is written by clearing its message, then
+        // writing the time and the message, so a reader finding the same message before and after reading the
+        // time knows the time belongs to that message.
+        private final AtomicReferenceArray<Object> messages = new AtomicReferenceArray<Object>(SLOTS);
+        private final AtomicLongArray enqueued = new AtomicLongArray(SLOTS);
+
+        private void enqueued(Object message, long now) {
+            int slot = System.identityHashCode(message) & (SLOTS - 1);
+            messages.set(slot, null);
+            enqueued.set(slot, now);
+            messages.set(slot, message);
+        }
+
+        private void delivered(Object message, long now) {
+            int slot = System.identityHashCode(message) & (SLOTS - 1);
+            if (messages.get(slot) != message) {
+                return;
+            }
+            long time = enqueued.get(slot);
+            if (messages.get(slot) == message && time != 0) {
+                queue.recordValue(Math.max(0, now - time));
+            }
+        }
+
+        void recordTransform(long nanos) {
+            transform.recordValue(Math.max(0, nanos));
+        }
+
+        void recordOutbound(long nanos) {
+            outbound.recordValue(Math.max(0, nanos));
+        }
+
+        private synchronized JsonObject toJson(boolean reset) {
+            JsonObject json = new JsonObject()
+                    .put("queue", toJson(queue, queueHistogram))
+                    .put("transform", toJson(transform, transformHistogram))
+                    .put("outbound", toJson(outbound, outboundHistogram));
+            if (reset) {
+                queueHistogram.reset();
+                transformHistogram.reset();
+                outboundHistogram.reset();
+            }
+            return json;
+        }
+
+        private static JsonObject toJson(Recorder recorder, Histogram histogram) {
+            histogram.add(recorder.getIntervalHistogram());
+            return new JsonObject()
+                    .put("count", histogram.getTotalCount())
+                    .put("min", micros(histogram.getMinValue()))
+                    .put("mean", micros((long) histogram.getMean()))
+                    .put("p50", micros(histogram.getValueAtPercentile(50)))
+                    .put("p90", micros(histogram.getValueAtPercentile(90)))
+                    .put("p99", micros(histogram.getValueAtPercentile(99)))
+                    .put("p999", micros(histogram.getValueAtPercentile(99.9)))
+                    .put("max", micros(histogram.getMaxValue()));
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+}
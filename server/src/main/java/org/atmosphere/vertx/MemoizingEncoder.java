@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.atmosphere.config.managed.Encoder;
+
+/**
+ * An {@link Encoder} which encodes a message once for all the {@link org.atmosphere.cpr.AtmosphereResource}s it is
+ * delivered to. A {@link org.atmosphere.config.service.ManagedService} invokes its {@link Encoder}s once per
+ * connection, so a broadcasted POJO is usually serialized once per connection, producing a different String each
+ * time. A MemoizingEncoder returns the same encoded instance for the same message instance, so the message is
+ * serialized once and, with an {@link EncodedMessageCache}, encoded and transformed once.
+ * <p/>
+ * Messages are looked up by identity: a message must not be modified once broadcasted.
+ *
+ * @param <U> the type of the message
+ * @param <T> the type of the encoded message
+ */
+public abstract class MemoizingEncoder<U, T> implements Encoder<U, T> {
+
+    private final IdentityCache<T> encoded = new IdentityCache<T>(64);
+
+    @Override
+    public T encode(U message) {
+        T e = encoded.get(message, null);
+        return e != null ? e : encoded.put(message, null, doEncode(message));
+    }
+
+    /**
+     * Encode the message, invoked once per message.
+     *
+     * @param message the message
+     * @return the encoded message
+     */
+    protected abstract T doEncode(U message);
+}
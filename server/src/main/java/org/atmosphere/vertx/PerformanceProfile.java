@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpServerOptions;
+import org.atmosphere.cpr.ApplicationConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Predefined transport and Atmosphere tuning used by {@link VertxAtmosphere.Builder#profile(PerformanceProfile)}
+ * when the {@link io.vertx.core.http.HttpServer} is created by the {@link VertxAtmosphere.Builder}.
+ * <p/>
+ * Native options (SO_REUSEPORT, TCP_FASTOPEN, TCP_QUICKACK) are only applied when Vert.x runs with the native
+ * epoll transport, see {@link #vertxOptions()}. Otherwise Vert.x falls back to NIO and those options are ignored.
+ * <p/>
+ * Within a single {@link io.vertx.core.Vertx} instance, servers listening on the same host and port share one
+ * acceptor and Vert.x round-robins the connections between their handlers, so SO_REUSEPORT doesn't add acceptors.
+ * It only spreads the connections between separate {@link io.vertx.core.Vertx} instances or processes listening
+ * on the same port.
+ */
+public enum PerformanceProfile {
+
+    /**
+     * Small messages delivered as fast as possible to a moderate number of clients.
+     */
+    LOW_LATENCY(true, false, 64 * 1024, 64 * 1024, 1024, 64 * 1024, false) {
+        @Override
+        protected void initParams(Map<String, String> params, int cores) {
+            params.put(ApplicationConfig.BROADCASTER_SHARABLE_THREAD_POOLS, "true");
+            params.put(ApplicationConfig.BROADCASTER_MESSAGE_PROCESSING_THREADPOOL_MAXSIZE, String.valueOf(cores));
+            params.put(ApplicationConfig.BROADCASTER_ASYNC_WRITE_THREADPOOL_MAXSIZE, String.valueOf(cores));
+        }
+    },
+    /**
+     * Every broadcast delivered to a large number of clients.
+     */
+    HIGH_FANOUT(true, true, 256 * 1024, 32 * 1024, 8192, 64 * 1024, true) {
+        @Override
+        protected void initParams(Map<String, String> params, int cores) {
+            params.put(ApplicationConfig.BROADCASTER_SHARABLE_THREAD_POOLS, "true");
+            params.put(ApplicationConfig.BROADCASTER_MESSAGE_PROCESSING_THREADPOOL_MAXSIZE, String.valueOf(cores));
+            params.put(ApplicationConfig.BROADCASTER_ASYNC_WRITE_THREADPOOL_MAXSIZE, String.valueOf(cores * 2));
+        }
+    },
+    /**
+     * Small socket buffers and frames, and a bounded number of Atmosphere threads.
+     */
+    MEMORY_CONSTRAINED(true, false, 16 * 1024, 16 * 1024, 1024, 16 * 1024, false) {
+        @Override
+        protected void initParams(Map<String, String> params, int cores) {
+            params.put(ApplicationConfig.BROADCASTER_SHARABLE_THREAD_POOLS, "true");
+            params.put(ApplicationConfig.BROADCASTER_MESSAGE_PROCESSING_THREADPOOL_MAXSIZE, "2");
+            params.put(ApplicationConfig.BROADCASTER_ASYNC_WRITE_THREADPOOL_MAXSIZE, "2");
+            params.put(ApplicationConfig.WEBSOCKET_MAXTEXTSIZE, String.valueOf(16 * 1024));
+            params.put(ApplicationConfig.WEBSOCKET_MAXBINARYSIZE, String.valueOf(16 * 1024));
+        }
+    };
+
+    private final boolean tcpNoDelay;
+    private final boolean tcpFastOpen;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int acceptBacklog;
+    private final int maxWebSocketFrameSize;
+    private final boolean contextAffineWrites;
+
+    PerformanceProfile(boolean tcpNoDelay, boolean tcpFastOpen, int sendBufferSize, int receiveBufferSize,
+                       int acceptBacklog, int maxWebSocketFrameSize, boolean contextAffineWrites) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.tcpFastOpen = tcpFastOpen;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.acceptBacklog = acceptBacklog;
+        this.maxWebSocketFrameSize = maxWebSocketFrameSize;
+        this.contextAffineWrites = contextAffineWrites;
+    }
+
+    protected abstract void initParams(Map<String, String> params, int cores);
+
+    /**
+     * Apply this profile to the {@link HttpServerOptions}.
+     *
+     * @param options         the {@link HttpServerOptions}
+     * @param nativeTransport true if Vert.x runs with a native transport
+     * @return the {@link HttpServerOptions}
+     */
+    public HttpServerOptions configure(HttpServerOptions options, boolean nativeTransport) {
+        options.setTcpNoDelay(tcpNoDelay)
+                .setUsePooledBuffers(true)
+                .setSendBufferSize(sendBufferSize)
+                .setReceiveBufferSize(receiveBufferSize)
+                .setAcceptBacklog(acceptBacklog)
+                .setMaxWebsocketFrameSize(maxWebSocketFrameSize)
+                .setReuseAddress(true);
+
+        if (nativeTransport) {
+            // Lets separate Vertx instances or processes bind the same port, the kernel spreads the connections.
+            options.setReusePort(true)
+                    .setTcpFastOpen(tcpFastOpen)
+                    .setTcpQuickAck(tcpNoDelay);
+        }
+        return options;
+    }
+
+    /**
+     * The Atmosphere init params matching this profile.
+     *
+     * @return a Map of init params
+     */
+    public Map<String, String> initParams() {
+        Map<String, String> params = new HashMap<String, String>();
+        initParams(params, Runtime.getRuntime().availableProcessors());
+        return params;
+    }
+
+    /**
+     * Return true if writes must be batched per event loop, see {@link VertxAtmosphere.Builder#contextAffineWrites(boolean)}
+     *
+     * @return true if writes must be batched per event loop
+     */
+    public boolean contextAffineWrites() {
+        return contextAffineWrites;
+    }
+
+    /**
+     * Return {@link VertxOptions} preferring the native transport (epoll on Linux). Vert.x falls back to NIO
+     * when the native library isn't available on the classpath.
+     *
+     * @return {@link VertxOptions}
+     */
+    public static VertxOptions vertxOptions() {
+        return new VertxOptions().setPreferNativeTransport(true);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of messages, stored in memory-mapped segment files so it survives restarts. Every message is
+ * given a sequence number, starting at 1, and can be replayed from the sequence number last seen by a client.
+ * <p/>
+ * A record is made of its length, a CRC32 checksum, its sequence number, timestamp and bytes. Segments are named after the sequence number
+ * of their first record and a new one is created once the current one is full. Each segment keeps a sparse in-memory
+ * index, one entry every {@link #INDEX_INTERVAL} bytes, so a sequence number is resolved with a binary search over the
+ * segments, then over the index, followed by a short scan. Replayed messages are slices of the mapped segments, they
+ * aren't copied.
+ * <p/>
+ * Appends only write to memory. Depending on the {@link FsyncPolicy}, the segment is forced to the disk after every
+ * append, when {@link #flush()} is invoked, or when the operating system decides.
+ */
+public class ReplayLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayLog.class);
+
+    public enum FsyncPolicy {
+        /**
+         * Force every append to the disk.
+         */
+        ALWAYS,
+        /**
+         * Force appends to the disk when {@link #flush()} is invoked, e.g periodically.
+         */
+        INTERVAL,
+        /**
+         * Let the operating system write the pages to the disk.
+         */
+        NEVER
+    }
+
+    // length, checksum, sequence, timestamp
+    private static final int HEADER = 4 + 4 + 8 + 8;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final FsyncPolicy fsyncPolicy;
+
+    private volatile Segment[] segments = new Segment[0];
+    private long nextSequence = 1;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Open, or create, the log stored in the directory.
+     *
+     * @param directory       the directory containing the segments
+     * @param segmentSize     the size of a segment, in bytes
+     * @param retentionMillis the time after which a segment is deleted, or -1 to keep segments forever
+     * @param retentionBytes  the maximum size of the log, or -1 for no limit
+     * @param fsyncPolicy     the {@link FsyncPolicy}
+     * @throws IOException if the segments can't be read
+     */
+    public ReplayLog(File directory, int segmentSize, long retentionMillis, long retentionBytes, FsyncPolicy fsyncPolicy) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        this.fsyncPolicy = fsyncPolicy;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        long[] bases = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            bases[i] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        Arrays.sort(bases);
+
+        Segment[] recovered = new Segment[bases.length];
+        for (int i = 0; i < bases.length; i++) {
+            recovered[i] = Segment.open(segmentFile(bases[i]), bases[i], segmentSize);
+        }
+        segments = recovered;
+
+        Segment last = recovered[recovered.length - 1];
+        nextSequence = last.lastSequence + 1;
+        logger.debug("Recovered {} segments from {}, next sequence {}", recovered.length, directory, nextSequence);
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param data the message
+     * @return the sequence number of the message
+     * @throws IOException if the log is closed
+     */
+    public long append(byte[] data) throws IOException {
+        return append(data, 0, data.length);
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param data   the array containing the message
+     * @param offset the offset of the message
+     * @param length the length of the message, which must be greater than 0
+     * @return the sequence number of the message
+     * @throws IOException if the log is closed
+     * @throws IllegalArgumentException if the message is empty or doesn't fit in a segment
+     */
+    public synchronized long append(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("ReplayLog " + directory + " is closed");
+        }
+        if (length <= 0 || HEADER + length > segmentSize) {
+            throw new IllegalArgumentException("Invalid message length " + length);
+        }
+
+        Segment s = segments.length == 0 ? null : segments[segments.length - 1];
+        if (s == null || s.position + HEADER + length > s.capacity) {
+            s = roll(s);
+        }
+
+        long sequence = nextSequence++;
+        long now = System.currentTimeMillis();
+        int position = s.position;
+
+        ByteBuffer b = s.buffer.duplicate();
+        ((Buffer) b).position(position + 8);
+        b.putLong(sequence);
+        b.putLong(now);
+        b.put(data, offset, length);
+        s.buffer.putInt(position + 4, checksum(s.buffer, position, length));
+        // The length is written last. Pages aren't written back in order, so a record is also ignored when
+        // recovering if its checksum doesn't match.
+        s.buffer.putInt(position, length);
+
+        s.appended(sequence, now, position, position + HEADER + length);
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            s.buffer.force();
+        } else {
+            dirty = true;
+        }
+        return sequence;
+    }
+
+    private Segment roll(Segment current) throws IOException {
+        if (current != null && fsyncPolicy != FsyncPolicy.NEVER) {
+            current.buffer.force();
+        }
+
+        Segment s = Segment.open(segmentFile(nextSequence), nextSequence, segmentSize);
+        Segment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+        rolled[rolled.length - 1] = s;
+        segments = rolled;
+
+        applyRetention();
+        return s;
+    }
+
+    /**
+     * Force the pending appends to the disk if the {@link FsyncPolicy} is {@link FsyncPolicy#INTERVAL}, and delete
+     * the segments exceeding the retention.
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+
+        if (dirty && fsyncPolicy == FsyncPolicy.INTERVAL && segments.length > 0) {
+            segments[segments.length - 1].buffer.force();
+        }
+        dirty = false;
+        applyRetention();
+    }
+
+    private void applyRetention() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        long size = (long) segments.length * segmentSize;
+
+        // The last segment is never deleted.
+        while (expired < segments.length - 1) {
+            Segment oldest = segments[expired];
+            boolean tooOld = retentionMillis > 0 && oldest.lastTimestamp < now - retentionMillis;
+            boolean tooBig = retentionBytes > 0 && size > retentionBytes;
+            if (!tooOld && !tooBig) {
+                break;
+            }
+            size -= oldest.capacity;
+            expired++;
+        }
+
+        if (expired > 0) {
+            Segment[] retained = Arrays.copyOfRange(segments, expired, segments.length);
+            Segment[] deleted = Arrays.copyOfRange(segments, 0, expired);
+            segments = retained;
+            for (Segment s : deleted) {
+                s.delete();
+            }
+        }
+    }
+
+    /**
+     * Replay the messages following a sequence number. If the sequence number is older than the retained messages,
+     * all retained messages are replayed.
+     *
+     * @param afterSequence the last sequence number seen, 0 to replay all retained messages
+     * @param max           the maximum number of messages to replay
+     * @param consumer      invoked with a read-only view of every message, valid until the segment is deleted, and
+     *                      its sequence number
+     * @return the sequence number of the last replayed message, or afterSequence if none
+     */
+    public long replay(long afterSequence, int max, ObjLongConsumer<ByteBuffer> consumer) {
+        Segment[] segs = segments;
+        long last = afterSequence;
+        int count = 0;
+
+        int first = floorSegment(segs, afterSequence + 1);
+        for (int i = Math.max(0, first); i < segs.length && count < max; i++) {
+            Segment s = segs[i];
+            // Read the position before the records, so only published records are read.
+            int limit = s.position;
+            int position = i == first ? s.floorPosition(afterSequence + 1) : 0;
+            ByteBuffer b = s.buffer;
+
+            while (position + HEADER <= limit && count < max) {
+                int length = b.getInt(position);
+                long sequence = b.getLong(position + 8);
+                if (sequence > afterSequence) {
+                    ByteBuffer slice = b.duplicate();
+                    ((Buffer) slice).limit(position + HEADER + length);
+                    ((Buffer) slice).position(position + HEADER);
+                    consumer.accept(slice.slice().asReadOnlyBuffer(), sequence);
+                    last = sequence;
+                    count++;
+                }
+                position += HEADER + length;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Return the sequence number of the last appended message, or 0 if the log is empty.
+     *
+     * @return the sequence number of the last appended message
+     */
+    public synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Return the sequence number of the first retained message.
+     *
+     * @return the sequence number of the first retained message
+     */
+    public long firstSequence() {
+        Segment[] segs = segments;
+        return segs.length == 0 ? nextSequence : segs[0].baseSequence;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Segment s : segments) {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                s.buffer.force();
+            }
+            s.channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayLog{" + directory + "}";
+    }
+
+    private File segmentFile(long baseSequence) {
+        return new File(directory, String.format("%020d%s", baseSequence, SUFFIX));
+    }
+
+    // CRC32 of the sequence, timestamp and bytes of a record.
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        ByteBuffer record = buffer.duplicate();
+        ((Buffer) record).limit(position + HEADER + length);
+        ((Buffer) record).position(position + 8);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    // Index of the last segment whose first sequence is lower or equal to the sequence, or -1.
+    private static int floorSegment(Segment[] segs, long sequence) {
+        int low = 0;
+        int high = segs.length - 1;
+        int floor = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segs[mid].baseSequence <= sequence) {
+                floor = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return floor;
+    }
+
+    private final static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final long baseSequence;
+        private final int capacity;
+
+        private volatile int position;
+        private volatile long lastSequence;
+        private volatile long lastTimestamp;
+
+        // The sparse index, arrays are replaced when growing and published by indexSize.
+        private volatile long[] indexSequences = new long[16];
+        private volatile int[] indexPositions = new int[16];
+        private volatile int indexSize;
+        private int lastIndexed = -INDEX_INTERVAL;
+
+        private Segment(File file, FileChannel channel, MappedByteBuffer buffer, long baseSequence) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.baseSequence = baseSequence;
+            this.capacity = buffer.capacity();
+            this.lastSequence = baseSequence - 1;
+        }
+
+        private static Segment open(File file, long baseSequence, int segmentSize) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            long size = Math.max(segmentSize, raf.length());
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            Segment s = new Segment(file, channel, buffer, baseSequence);
+            s.scan();
+            return s;
+        }
+
+        // Find the end of the records written before a restart and rebuild the index.
+        private void scan() {
+            int p = 0;
+            long expected = baseSequence;
+            while (p + HEADER <= capacity) {
+                int length = buffer.getInt(p);
+                if (length <= 0 || p + HEADER + length > capacity || buffer.getLong(p + 8) != expected
+                        || buffer.getInt(p + 4) != checksum(buffer, p, length)) {
+                    break;
+                }
+                appended(expected, buffer.getLong(p + 16), p, p + HEADER + length);
+                expected++;
+                p += HEADER + length;
+            }
+        }
+
+        private void appended(long sequence, long timestamp, int recordPosition, int end) {
+            if (recordPosition - lastIndexed >= INDEX_INTERVAL) {
+                index(sequence, recordPosition);
+                lastIndexed = recordPosition;
+            }
+            lastSequence = sequence;
+            lastTimestamp = timestamp;
+            position = end;
+        }
+
+        private void index(long sequence, int recordPosition) {
+            int size = indexSize;
+            long[] sequences = indexSequences;
+            int[] positions = indexPositions;
+            if (size == sequences.length) {
+                sequences = Arrays.copyOf(sequences, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+                indexSequences = sequences;
+                indexPositions = positions;
+            }
+            sequences[size] = sequence;
+            positions[size] = recordPosition;
+            indexSize = size + 1;
+        }
+
+        // Position of the last indexed record whose sequence is lower or equal to the sequence.
+        private int floorPosition(long sequence) {
+            int size = indexSize;
+            long[] sequences = indexSequences;
+            int[] positions = indexPositions;
+
+            int low = 0;
+            int high = size - 1;
+            int floor = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (sequences[mid] <= sequence) {
+                    floor = positions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return floor;
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.trace("", e);
+            }
+            if (!file.delete()) {
+                logger.warn("Unable to delete {}", file);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.atmosphere.cache.UUIDBroadcasterCache;
+import org.atmosphere.cpr.AtmosphereConfig;
+import org.atmosphere.cpr.AtmosphereRequest;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * A {@link UUIDBroadcasterCache} replaying the messages logged by {@link ReplayLogs} when it has no message for a
+ * client, typically because the server has been restarted. The client sends the sequence number of the last message
+ * it received, see {@link ReplayLogs}, using the Last-Event-ID or X-Atmosphere-Last-Event-Id header, or the
+ * lastEventId query param. Clients not sending it are served by the {@link UUIDBroadcasterCache} only.
+ * <p/>
+ * Replayed messages are delivered by the {@link org.atmosphere.cpr.Broadcaster}, like cached messages, before the
+ * {@link AtmosphereResource} is added to it, so they are always written before the messages broadcasted afterwards.
+ */
+public class ReplayLogBroadcasterCache extends UUIDBroadcasterCache {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayLogBroadcasterCache.class);
+
+    public static final String LAST_EVENT_ID = "Last-Event-ID";
+    public static final String X_ATMOSPHERE_LAST_EVENT_ID = "X-Atmosphere-Last-Event-Id";
+    public static final String LAST_EVENT_ID_PARAM = "lastEventId";
+
+    private AtmosphereConfig config;
+    private ReplayLogs replayLogs;
+
+    @Override
+    public void configure(AtmosphereConfig config) {
+        super.configure(config);
+        this.config = config;
+        this.replayLogs = (ReplayLogs) config.properties().get(ReplayLogs.class.getName());
+        if (replayLogs == null) {
+            logger.warn("No {} configured, messages won't be replayed", ReplayLogs.class.getName());
+        }
+    }
+
+    @Override
+    public List<Object> retrieveFromCache(String broadcasterId, final String uuid) {
+        List<Object> messages = super.retrieveFromCache(broadcasterId, uuid);
+        if (!messages.isEmpty() || replayLogs == null) {
+            return messages;
+        }
+
+        AtmosphereResource r = config.resourcesFactory().find(uuid);
+        long lastSeen = r == null ? -1 : lastSeen(r);
+        if (lastSeen < 0) {
+            return messages;
+        }
+
+        return replayLogs.replay(broadcasterId, lastSeen);
+    }
+
+    private long lastSeen(AtmosphereResource r) {
+        AtmosphereRequest request = r.getRequest();
+        String id = request.getHeader(LAST_EVENT_ID);
+        if (id == null) {
+            id = request.getHeader(X_ATMOSPHERE_LAST_EVENT_ID);
+        }
+        if (id == null) {
+            id = request.getParameter(LAST_EVENT_ID_PARAM);
+        }
+        if (id == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException e) {
+            logger.trace("Invalid last event id {}", id, e);
+            return -1;
+        }
+    }
+}
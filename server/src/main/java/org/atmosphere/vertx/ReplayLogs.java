@@ -0,0 +1,397 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.atmosphere.cpr.AsyncIOWriter;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.Broadcaster;
+import org.atmosphere.cpr.BroadcasterListenerAdapter;
+import org.atmosphere.cpr.PerRequestBroadcastFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Append every message broadcasted by a {@link Broadcaster} to a {@link ReplayLog}, one per {@link Broadcaster}, so
+ * messages can be replayed to clients reconnecting after a restart. See {@link ReplayLogBroadcasterCache}.
+ * <p/>
+ * The client sends back the sequence number of the last message it received when reconnecting. Messages are
+ * delivered unchanged, the sequence number is sent out of band as the id field of the SSE event. Clients using other
+ * transports need the messages prefixed with their sequence number, see {@link #separator(String)}.
+ * <p/>
+ * String messages are logged as is, other messages are logged using the function set with
+ * {@link #serializer(Function)}, and aren't logged without one. Appends are done on the broadcasting thread and only
+ * write to memory; with the default {@link ReplayLog.FsyncPolicy#INTERVAL} policy, logs are forced to the disk at
+ * the interval set using {@link #fsync(ReplayLog.FsyncPolicy, long)}.
+ */
+public class ReplayLogs extends BroadcasterListenerAdapter implements PerRequestBroadcastFilter {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayLogs.class);
+    // The messages replayed on this thread and their sequence number, delivered by the Broadcaster on the same thread.
+    private static final ThreadLocal<Map<Object, Long>> REPLAYED = new ThreadLocal<Map<Object, Long>>();
+
+    private final File directory;
+    private final ConcurrentMap<String, ReplayLog> logs = new ConcurrentHashMap<String, ReplayLog>();
+    private int segmentSize = 16 * 1024 * 1024;
+    private long retention = TimeUnit.HOURS.toMillis(1);
+    private long maxBytes = -1;
+    private ReplayLog.FsyncPolicy fsyncPolicy = ReplayLog.FsyncPolicy.INTERVAL;
+    private long fsyncInterval = 100;
+    private int maxReplay = 1000;
+    private String separator;
+    private Function<Object, String> serializer;
+    private final AtomicBoolean serializerWarned = new AtomicBoolean();
+    // The sequence number of the messages being broadcasted, until they are delivered.
+    private final IdentityCache<Long> sequences = new IdentityCache<Long>(1024);
+    private Future<?> flusher;
+
+    /**
+     * @param directory the directory containing a sub directory per {@link Broadcaster}
+     */
+    public ReplayLogs(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The size of a segment file, in bytes. Default is 16MB.
+     *
+     * @param segmentSize the size of a segment file
+     * @return this
+     */
+    public ReplayLogs segmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * The time, in milliseconds, messages are retained. Default is one hour, -1 to retain messages forever.
+     *
+     * @param retention the time messages are retained
+     * @return this
+     */
+    public ReplayLogs retention(long retention) {
+        this.retention = retention;
+        return this;
+    }
+
+    /**
+     * The maximum size, in bytes, of the log of a {@link Broadcaster}. Default is -1, no limit.
+     *
+     * @param maxBytes the maximum size of a log
+     * @return this
+     */
+    public ReplayLogs maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * When logs are forced to the disk. Default is {@link ReplayLog.FsyncPolicy#INTERVAL}, every 100 milliseconds.
+     *
+     * @param fsyncPolicy the {@link ReplayLog.FsyncPolicy}
+     * @param interval    the interval, in milliseconds, used by {@link ReplayLog.FsyncPolicy#INTERVAL}
+     * @return this
+     */
+    public ReplayLogs fsync(ReplayLog.FsyncPolicy fsyncPolicy, long interval) {
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = interval;
+        return this;
+    }
+
+    /**
+     * The maximum number of messages replayed to a reconnecting client. Default is 1000.
+     *
+     * @param maxReplay the maximum number of messages replayed
+     * @return this
+     */
+    public ReplayLogs maxReplay(int maxReplay) {
+        this.maxReplay = maxReplay;
+        return this;
+    }
+
+    /**
+     * Prefix the String messages with their sequence number and a separator, e.g 42|message with |, for the clients
+     * which can't receive the sequence number out of band, e.g using a WebSocket. The prefixed message is shared by
+     * every recipient. Default is null, messages aren't prefixed.
+     *
+     * @param separator the separator, or null
+     * @return this
+     */
+    public ReplayLogs separator(String separator) {
+        this.separator = separator;
+        return this;
+    }
+
+    /**
+     * Serialize the messages which aren't Strings, e.g the POJOs broadcasted to a
+     * {@link org.atmosphere.config.service.ManagedService}, so they can be logged. The serialized form is replayed,
+     * it should be the one produced by the {@link org.atmosphere.config.managed.Encoder}s. Default is null, these
+     * messages aren't logged.
+     *
+     * @param serializer return the serialized message
+     * @return this
+     */
+    public ReplayLogs serializer(Function<Object, String> serializer) {
+        this.serializer = serializer;
+        return this;
+    }
+
+    /**
+     * Periodically force the logs to the disk and apply the retention.
+     *
+     * @param scheduler the {@link ScheduledExecutorService}
+     * @return this
+     */
+    public ReplayLogs start(ScheduledExecutorService scheduler) {
+        long period = fsyncPolicy == ReplayLog.FsyncPolicy.INTERVAL ? fsyncInterval : TimeUnit.SECONDS.toMillis(1);
+        flusher = scheduler.scheduleWithFixedDelay(() -> {
+            for (ReplayLog log : logs.values()) {
+                try {
+                    log.flush();
+                } catch (Throwable t) {
+                    logger.warn("Unable to flush {}", log, t);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Force the logs to the disk and close them.
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.cancel(false);
+        }
+        for (ReplayLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.trace("", e);
+            }
+        }
+        logs.clear();
+    }
+
+    @Override
+    public void onPreDestroy(Broadcaster b) {
+        ReplayLog log = logs.remove(b.getID());
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.trace("", e);
+            }
+        }
+    }
+
+    @Override
+    public void onPostCreate(Broadcaster b) {
+        b.getBroadcasterConfig().addFilter(this);
+    }
+
+    /**
+     * Invoked when the message is broadcasted, log it and prefix it with its sequence number if a separator is set.
+     * Messages replayed from the log, which the {@link Broadcaster} filters again, aren't logged twice.
+     */
+    @Override
+    public BroadcastAction filter(String broadcasterId, Object originalMessage, Object message) {
+        if (replayed(originalMessage) >= 0) {
+            return new BroadcastAction(message);
+        }
+
+        String serialized = serialize(message);
+        if (serialized != null && !serialized.isEmpty()) {
+            try {
+                long sequence = log(broadcasterId).append(serialized.getBytes(StandardCharsets.UTF_8));
+                sequences.put(originalMessage, broadcasterId, sequence);
+                if (separator != null && message instanceof String) {
+                    return new BroadcastAction(sequence + separator + message);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // The broadcast must not fail because it can't be logged.
+                logger.warn("Unable to log message broadcasted by {}", broadcasterId, e);
+            }
+        }
+        return new BroadcastAction(message);
+    }
+
+    /**
+     * Invoked when the message is delivered to an {@link AtmosphereResource}, tag its connection with the sequence
+     * number of the message, written as the id of the SSE event.
+     */
+    @Override
+    public BroadcastAction filter(String broadcasterId, AtmosphereResource r, Object originalMessage, Object message) {
+        Long sequence = sequences.get(originalMessage, broadcasterId);
+        if (sequence != null) {
+            AsyncIOWriter w = r.getResponse().getAsyncIOWriter();
+            if (w instanceof VertxAsyncIOWriter) {
+                VertxAsyncIOWriter.class.cast(w).eventId(sequence, message);
+            }
+        }
+        return new BroadcastAction(message);
+    }
+
+    private String serialize(Object message) {
+        if (message instanceof String) {
+            return (String) message;
+        }
+        if (message == null) {
+            return null;
+        }
+        if (serializer == null) {
+            if (!serializerWarned.getAndSet(true)) {
+                logger.warn("Messages of {} aren't logged, no serializer set", message.getClass().getName());
+            }
+            return null;
+        }
+        return serializer.apply(message);
+    }
+
+    /**
+     * Return the sequence number of a message returned by {@link #replay(String, long)} on the current thread, or -1.
+     *
+     * @param message the message
+     * @return the sequence number, or -1
+     */
+    static long replayed(Object message) {
+        Map<Object, Long> replayed = REPLAYED.get();
+        Long sequence = replayed == null ? null : replayed.get(message);
+        return sequence == null ? -1 : sequence;
+    }
+
+    /**
+     * Replay the messages broadcasted by a {@link Broadcaster} after a sequence number, at most the number set using
+     * {@link #maxReplay(int)}. Messages are prefixed with their sequence number if a separator is set, and are
+     * read-only views of the memory-mapped log, they aren't copied.
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()}
+     * @param afterSequence the sequence number of the last message received by the client
+     * @param consumer      invoked with every message
+     * @return the number of replayed messages
+     */
+    public int replay(String broadcasterId, long afterSequence, final Consumer<ByteBuf> consumer) {
+        return replay(broadcasterId, afterSequence, (b, sequence) -> consumer.accept(b));
+    }
+
+    private int replay(String broadcasterId, long afterSequence, final ObjLongConsumer<ByteBuf> consumer) {
+        ReplayLog log;
+        try {
+            log = log(broadcasterId);
+        } catch (IOException e) {
+            logger.warn("Unable to replay messages broadcasted by {}", broadcasterId, e);
+            return 0;
+        }
+
+        final int[] count = new int[1];
+        log.replay(afterSequence, maxReplay, (b, sequence) -> {
+            if (separator == null) {
+                consumer.accept(Unpooled.wrappedBuffer(b), sequence);
+            } else {
+                byte[] prefix = (sequence + separator).getBytes(StandardCharsets.UTF_8);
+                consumer.accept(Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(prefix), Unpooled.wrappedBuffer(b)),
+                        sequence);
+            }
+            count[0]++;
+        });
+        logger.trace("Replayed {} messages broadcasted by {} after {}", count[0], broadcasterId, afterSequence);
+        return count[0];
+    }
+
+    /**
+     * Return the messages broadcasted by a {@link Broadcaster} after a sequence number, to be delivered by the
+     * {@link Broadcaster} on the current thread, e.g by a {@link org.atmosphere.cache.BroadcasterCache}. Unlike
+     * {@link #replay(String, long, Consumer)}, messages are copied. Until the next replay on the current thread, the
+     * messages are known to be replayed, so they aren't logged again and their sequence number is written as the id
+     * of the SSE event.
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()}
+     * @param afterSequence the sequence number of the last message received by the client
+     * @return the messages
+     */
+    public List<Object> replay(String broadcasterId, long afterSequence) {
+        final List<Object> messages = new ArrayList<Object>();
+        final Map<Object, Long> replayed = new IdentityHashMap<Object, Long>();
+        replay(broadcasterId, afterSequence, (b, sequence) -> {
+            String message = b.toString(StandardCharsets.UTF_8);
+            messages.add(message);
+            replayed.put(message, sequence);
+        });
+        REPLAYED.set(replayed);
+        return messages;
+    }
+
+    /**
+     * Return the sequence number of the last message broadcasted by a {@link Broadcaster}, or 0.
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()}
+     * @return the sequence number of the last message
+     */
+    public long lastSequence(String broadcasterId) {
+        try {
+            return log(broadcasterId).lastSequence();
+        } catch (IOException e) {
+            logger.trace("", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Return the {@link ReplayLog} of a {@link Broadcaster}, opening it if needed.
+     *
+     * @param broadcasterId the {@link Broadcaster#getID()}
+     * @return the {@link ReplayLog}
+     * @throws IOException if the log can't be opened
+     */
+    public ReplayLog log(String broadcasterId) throws IOException {
+        ReplayLog log = logs.get(broadcasterId);
+        if (log != null) {
+            return log;
+        }
+
+        synchronized (logs) {
+            log = logs.get(broadcasterId);
+            if (log == null) {
+                log = new ReplayLog(new File(directory, encode(broadcasterId)), segmentSize, retention, maxBytes, fsyncPolicy);
+                logs.put(broadcasterId, log);
+            }
+            return log;
+        }
+    }
+
+    private static String encode(String broadcasterId) throws UnsupportedEncodingException {
+        return URLEncoder.encode(broadcasterId, "UTF-8");
+    }
+}
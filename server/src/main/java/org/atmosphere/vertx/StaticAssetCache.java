@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileProps;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serve static assets, like atmosphere.js or an application bundle, from a bounded in-memory cache. Every cached
+ * asset is kept with a gzip variant, computed once, and a brotli variant when a precompressed file with the
+ * .br extension exists next to it. Responses carry an ETag, and conditional requests are answered with 304.
+ * <p/>
+ * Least recently used assets are evicted once the cache exceeds its size. Assets larger than the cache are
+ * sent from the file system. Like Vert.x's StaticHandler, a cached asset is revalidated once its entry is older than
+ * the cache entry timeout: it is loaded again if the modification time or the size of its file changed. Requests
+ * that don't match a file are passed to the next handler, and the path is remembered for a few seconds so repeated
+ * misses don't hit the file system.
+ */
+public class StaticAssetCache implements Handler<RoutingContext> {
+    public static final long DEFAULT_CACHE_ENTRY_TIMEOUT = 30000;
+    private static final Logger logger = LoggerFactory.getLogger(StaticAssetCache.class);
+    private static final String INDEX = "/index.html";
+    private static final long MAX_AGE = 86400;
+    private static final int MAX_MISSES = 1024;
+    private static final long MISS_TTL = 5000;
+    private static final Map<String, String> CONTENT_TYPES = contentTypes();
+
+    private final Vertx vertx;
+    private final String webroot;
+    private final long maxBytes;
+    private final long cacheEntryTimeout;
+    private long size;
+    private final LinkedHashMap<String, Asset> assets = new LinkedHashMap<String, Asset>(64, 0.75f, true);
+    // Paths not matching a file, with the time they have been looked up.
+    private final LinkedHashMap<String, Long> misses = new LinkedHashMap<String, Long>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_MISSES;
+        }
+    };
+
+    /**
+     * Create a cache revalidating its assets every {@link #DEFAULT_CACHE_ENTRY_TIMEOUT} milliseconds.
+     *
+     * @param vertx    the {@link Vertx} instance
+     * @param webroot  the directory containing the static assets
+     * @param maxBytes the maximum number of bytes cached, including the compressed variants
+     */
+    public StaticAssetCache(Vertx vertx, String webroot, long maxBytes) {
+        this(vertx, webroot, maxBytes, DEFAULT_CACHE_ENTRY_TIMEOUT);
+    }
+
+    /**
+     * @param vertx             the {@link Vertx} instance
+     * @param webroot           the directory containing the static assets
+     * @param maxBytes          the maximum number of bytes cached, including the compressed variants
+     * @param cacheEntryTimeout the time, in milliseconds, after which a cached asset is revalidated against its
+     *                          file, or -1 to never revalidate
+     */
+    public StaticAssetCache(Vertx vertx, String webroot, long maxBytes, long cacheEntryTimeout) {
+        this.vertx = vertx;
+        this.webroot = webroot.endsWith("/") ? webroot.substring(0, webroot.length() - 1) : webroot;
+        this.maxBytes = maxBytes;
+        this.cacheEntryTimeout = cacheEntryTimeout;
+    }
+
+    @Override
+    public void handle(final RoutingContext ctx) {
+        HttpMethod method = ctx.request().method();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            ctx.next();
+            return;
+        }
+
+        String path = ctx.normalisedPath();
+        if (path == null || path.contains("..")) {
+            ctx.next();
+            return;
+        }
+        final String p = path.endsWith("/") ? path.substring(0, path.length() - 1) + INDEX : path;
+
+        final Asset asset = get(p);
+        if (asset != null) {
+            if (cacheEntryTimeout < 0 || System.currentTimeMillis() - asset.validated <= cacheEntryTimeout) {
+                send(ctx, asset);
+                return;
+            }
+
+            vertx.fileSystem().props(asset.file, props -> {
+                if (props.succeeded() && asset.matches(props.result())) {
+                    asset.validated = System.currentTimeMillis();
+                    send(ctx, asset);
+                } else {
+                    remove(p, asset);
+                    load(ctx, p);
+                }
+            });
+            return;
+        }
+        if (missed(p)) {
+            ctx.next();
+            return;
+        }
+        load(ctx, p);
+    }
+
+    private void load(final RoutingContext ctx, final String p) {
+        vertx.<Asset>executeBlocking(future -> {
+            try {
+                future.complete(read(p));
+            } catch (Exception e) {
+                future.fail(e);
+            }
+        }, false, result -> {
+            if (result.failed()) {
+                logger.debug("Unable to load {}", p, result.cause());
+                ctx.next();
+            } else if (result.result() == null) {
+                miss(p);
+                ctx.next();
+            } else if (result.result().raw == null) {
+                ctx.response().sendFile(result.result().file);
+            } else {
+                put(p, result.result());
+                send(ctx, result.result());
+            }
+        });
+    }
+
+    /**
+     * Remove all cached assets.
+     */
+    public synchronized void clear() {
+        assets.clear();
+        misses.clear();
+        size = 0;
+    }
+
+    /**
+     * Return the number of bytes cached.
+     *
+     * @return the number of bytes cached
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private synchronized Asset get(String path) {
+        return assets.get(path);
+    }
+
+    private synchronized boolean missed(String path) {
+        Long time = misses.get(path);
+        if (time == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - time > MISS_TTL) {
+            misses.remove(path);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void miss(String path) {
+        misses.put(path, System.currentTimeMillis());
+    }
+
+    private synchronized void remove(String path, Asset asset) {
+        if (assets.get(path) == asset) {
+            assets.remove(path);
+            size -= asset.size();
+        }
+    }
+
+    private synchronized void put(String path, Asset asset) {
+        // The raw file fits, but not with its compressed variants: serve it from memory this time only.
+        if (asset.size() > maxBytes) {
+            return;
+        }
+
+        Asset old = assets.put(path, asset);
+        if (old != null) {
+            size -= old.size();
+        }
+        size += asset.size();
+
+        Iterator<Map.Entry<String, Asset>> it = assets.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Asset> e = it.next();
+            if (e.getValue() != asset) {
+                size -= e.getValue().size();
+                it.remove();
+            }
+        }
+    }
+
+    private Asset read(String path) throws IOException {
+        String file = webroot + path;
+        FileSystem fs = vertx.fileSystem();
+        if (!fs.existsBlocking(file)) {
+            return null;
+        }
+
+        // Read before the file, so a concurrent change is detected when the asset is revalidated.
+        FileProps props = fs.propsBlocking(file);
+        if (props.isDirectory()) {
+            return null;
+        }
+        if (props.size() > maxBytes) {
+            return new Asset(file, props, null, null, null, null, null);
+        }
+
+        Buffer raw = fs.readFileBlocking(file);
+        Buffer br = fs.existsBlocking(file + ".br") ? fs.readFileBlocking(file + ".br") : null;
+        Buffer gzip = gzip(raw);
+        if (gzip.length() >= raw.length()) {
+            gzip = null;
+        }
+
+        String contentType = contentType(file);
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        } else if (contentType.startsWith("text") || contentType.equals("application/javascript")) {
+            contentType += ";charset=UTF-8";
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(raw.getBytes());
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(raw.length()) + "\"";
+
+        return new Asset(file, props, contentType, etag, raw, gzip, br);
+    }
+
+    private static String contentType(String file) {
+        int dot = file.lastIndexOf('.');
+        String contentType = dot < 0 ? null : CONTENT_TYPES.get(file.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+        return contentType != null ? contentType : URLConnection.getFileNameMap().getContentTypeFor(file);
+    }
+
+    // The usual web assets, other files are looked up in the JDK's content types.
+    private static Map<String, String> contentTypes() {
+        Map<String, String> types = new HashMap<String, String>();
+        types.put("html", "text/html");
+        types.put("htm", "text/html");
+        types.put("css", "text/css");
+        types.put("txt", "text/plain");
+        types.put("csv", "text/csv");
+        types.put("xml", "application/xml");
+        types.put("js", "application/javascript");
+        types.put("mjs", "application/javascript");
+        types.put("json", "application/json");
+        types.put("map", "application/json");
+        types.put("wasm", "application/wasm");
+        types.put("pdf", "application/pdf");
+        types.put("svg", "image/svg+xml");
+        types.put("png", "image/png");
+        types.put("jpg", "image/jpeg");
+        types.put("jpeg", "image/jpeg");
+        types.put("gif", "image/gif");
+        types.put("webp", "image/webp");
+        types.put("ico", "image/x-icon");
+        types.put("woff", "font/woff");
+        types.put("woff2", "font/woff2");
+        types.put("ttf", "font/ttf");
+        types.put("otf", "font/otf");
+        types.put("eot", "application/vnd.ms-fontobject");
+        types.put("mp3", "audio/mpeg");
+        types.put("mp4", "video/mp4");
+        types.put("webm", "video/webm");
+        return types;
+    }
+
+    private static Buffer gzip(Buffer raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length());
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(raw.getBytes());
+        }
+        return Buffer.buffer(bytes.toByteArray());
+    }
+
+    private static void send(RoutingContext ctx, Asset asset) {
+        HttpServerResponse response = ctx.response();
+        response.putHeader("ETag", asset.etag)
+                .putHeader("Cache-Control", "public, max-age=" + MAX_AGE)
+                .putHeader("Vary", "Accept-Encoding");
+
+        if (asset.etag.equals(ctx.request().getHeader("If-None-Match"))) {
+            response.setStatusCode(304).end();
+            return;
+        }
+
+        Buffer body = asset.raw;
+        String acceptEncoding = ctx.request().getHeader("Accept-Encoding");
+        if (acceptEncoding != null) {
+            if (asset.br != null && acceptEncoding.contains("br")) {
+                body = asset.br;
+                response.putHeader("Content-Encoding", "br");
+            } else if (asset.gzip != null && acceptEncoding.contains("gzip")) {
+                body = asset.gzip;
+                response.putHeader("Content-Encoding", "gzip");
+            }
+        }
+
+        response.putHeader("Content-Type", asset.contentType)
+                .putHeader("Content-Length", String.valueOf(body.length()));
+        if (ctx.request().method() == HttpMethod.HEAD) {
+            response.end();
+        } else {
+            response.end(body);
+        }
+    }
+
+    private final static class Asset {
+        private final String file;
+        private final long lastModified;
+        private final long fileSize;
+        private volatile long validated = System.currentTimeMillis();
+        private final String contentType;
+        private final String etag;
+        private final Buffer raw;
+        private final Buffer gzip;
+        private final Buffer br;
+
+        private Asset(String file, FileProps props, String contentType, String etag, Buffer raw, Buffer gzip,
+                      Buffer br) {
+            this.file = file;
+            this.lastModified = props.lastModifiedTime();
+            this.fileSize = props.size();
+            this.contentType = contentType;
+            this.etag = etag;
+            this.raw = raw;
+            this.gzip = gzip;
+            this.br = br;
+        }
+
+        private boolean matches(FileProps props) {
+            return !props.isDirectory() && props.lastModifiedTime() == lastModified && props.size() == fileSize;
+        }
+
+        private long size() {
+            return raw.length() + (gzip == null ? 0 : gzip.length()) + (br == null ? 0 : br.length());
+        }
+    }
+}
@@ -23,31 +23,139 @@ import org.atmosphere.cpr.AtmosphereResponse;
 import org.atmosphere.util.ByteArrayAsyncWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class VertxAsyncIOWriter extends AtmosphereInterceptorWriter {
     private static final Logger logger = LoggerFactory.getLogger(VertxAsyncIOWriter.class);
+    // Connection specific headers aren't allowed with HTTP/2, see RFC 7540 section 8.1.2.2
+    private static final Set<String> HTTP1_ONLY_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
     private final AtomicInteger pendingWrite = new AtomicInteger();
     private final AtomicBoolean isClosed = new AtomicBoolean(false);
     private final ByteArrayAsyncWriter buffer = new ByteArrayAsyncWriter();
     private long lastWrite = 0;
     private final HttpServerResponse out;
     private boolean headerWritten = false;
+    private final ContextDispatcher dispatcher;
+    private final LatencyMark latencyMark = new LatencyMark();
+    private final boolean http2;
+    private final Deque<Buffer> pending = new ArrayDeque<Buffer>();
+    private long pendingBytes;
+    private long maxPendingBytes = -1;
+    private boolean drainHandlerSet;
+    private boolean ended;
+    private ConflationPolicy conflationPolicy;
+    private Conflater conflater;
+    private EncodedMessageCache encodedMessageCache;
+    private volatile EventId eventId;
+    private volatile AtmosphereResponse conflatedResponse;
+    private volatile AtmosphereResource resource;
 
     public VertxAsyncIOWriter(final HttpServerRequest request) {
+        this(request, null);
+    }
+
+    /**
+     * Create a {@link VertxAsyncIOWriter} which delivers its writes through a {@link ContextDispatcher}
+     *
+     * @param request    the {@link HttpServerRequest}
+     * @param dispatcher the {@link ContextDispatcher} of the event loop owning the connection, or null
+     */
+    public VertxAsyncIOWriter(final HttpServerRequest request, final ContextDispatcher dispatcher) {
         out = request.response();
+        http2 = request.version() == HttpVersion.HTTP_2;
+        this.dispatcher = dispatcher;
     }
 
     public boolean isClosed() {
         return isClosed.get();
     }
 
+    /**
+     * Return true if the response is sent over an HTTP/2 stream.
+     *
+     * @return true if HTTP/2
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * The maximum number of bytes kept while the connection, or the HTTP/2 stream, doesn't accept more writes.
+     * Once exceeded, the response is closed and the {@link AtmosphereResource} is closed, so it is removed from its
+     * {@link org.atmosphere.cpr.Broadcaster}s. Default is -1, no limit.
+     *
+     * @param maxPendingBytes the maximum number of pending bytes
+     * @return this
+     */
+    public VertxAsyncIOWriter maxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+        return this;
+    }
+
+    /**
+     * Conflate the messages of a streaming connection when it doesn't accept more writes. See {@link ConflationPolicy}.
+     *
+     * @param conflationPolicy the {@link ConflationPolicy}, or null
+     * @return this
+     */
+    public VertxAsyncIOWriter conflation(ConflationPolicy conflationPolicy) {
+        this.conflationPolicy = conflationPolicy;
+        this.conflater = conflationPolicy == null ? null : new Conflater(conflationPolicy, this::flushConflated);
+        return this;
+    }
+
+    /**
+     * Share the encoded messages, and their transformations, with the other connections. See
+     * {@link EncodedMessageCache}.
+     *
+     * @param encodedMessageCache the {@link EncodedMessageCache}, or null
+     * @return this
+     */
+    public VertxAsyncIOWriter encodedMessageCache(EncodedMessageCache encodedMessageCache) {
+        this.encodedMessageCache = encodedMessageCache;
+        return this;
+    }
+
+    /**
+     * Write the pending conflated messages, if the connection accepts writes.
+     */
+    public void flushConflated() {
+        final AtmosphereResponse r = conflatedResponse;
+        if (conflater == null || r == null) {
+            return;
+        }
+
+        if (isClosed()) {
+            conflater.clear();
+            return;
+        }
+
+        conflater.flush(this::writable, data -> {
+            try {
+                writeEncoded(r, data);
+            } catch (IOException | IllegalStateException ex) {
+                logger.trace("", ex);
+            }
+        });
+    }
+
     @Override
     public AsyncIOWriter writeError(AtmosphereResponse r, int errorCode, String message) throws IOException {
         // TODO: Set status
@@ -58,9 +166,71 @@ public class VertxAsyncIOWriter extends AtmosphereInterceptorWriter {
 
     @Override
     public AsyncIOWriter write(AtmosphereResponse r, String data) throws IOException {
-        byte[] b = data.getBytes(r.getCharacterEncoding());
-        write(r, b);
-        return this;
+        if (isClosed()) {
+            return this;
+        }
+
+        long id = eventId(r, data);
+        if (conflater != null && r.resource() != null
+                && !r.resource().transport().equals(AtmosphereResource.TRANSPORT.LONG_POLLING)) {
+            String key = conflationPolicy.key(conflater.take(data), data);
+            if (key != null && conflater.offer(key, data, this::writable)) {
+                conflatedResponse = r;
+                drainHandler();
+                return this;
+            }
+        }
+
+        if (id >= 0) {
+            // The id field of the SSE event, preceding the data fields written by the SSEAtmosphereInterceptor.
+            write(r, Buffer.buffer("id: " + id + "\n"), true);
+        }
+        return writeEncoded(r, data);
+    }
+
+    /**
+     * Tag the response with the sequence number of a message logged by {@link ReplayLogs}, when the message is about
+     * to be delivered.
+     */
+    void eventId(long sequence, Object message) {
+        eventId = new EventId(sequence, message);
+    }
+
+    /**
+     * Return the sequence number of the message written to an SSE response, or -1. The tag is reset.
+     */
+    private long eventId(AtmosphereResponse r, String data) {
+        EventId e = eventId;
+        eventId = null;
+        AtmosphereResource resource = r.resource();
+        if (resource == null || resource.transport() != AtmosphereResource.TRANSPORT.SSE) {
+            return -1;
+        }
+
+        // The message delivered is data, or the message encoded into data, e.g by a ManagedService's Encoder.
+        if (e != null && (e.message == data || e.message == resource.getAtmosphereResourceEvent().getMessage())) {
+            return e.sequence;
+        }
+        return ReplayLogs.replayed(data);
+    }
+
+    private AsyncIOWriter writeEncoded(final AtmosphereResponse r, String data) throws IOException {
+        if (encodedMessageCache == null) {
+            write(r, data.getBytes(r.getCharacterEncoding()));
+            return this;
+        }
+
+        // Every connection receiving the same message shares the same bytes, and the same transformed bytes.
+        final byte[] b = encodedMessageCache.encode(data, r.getCharacterEncoding());
+        if (isClosed() || filters.isEmpty() || r.getStatus() >= 400) {
+            write(r, b);
+            return this;
+        }
+
+        byte[] transformed = encodedMessageCache.transform(data, r.getCharacterEncoding(), filters,
+                () -> transform(r, b, 0, b.length));
+        return write(r, Buffer.buffer(Unpooled.wrappedBuffer(transformed)),
+                isBlank(transformed, 0, transformed.length));
     }
 
     @Override
@@ -83,6 +253,11 @@ public class VertxAsyncIOWriter extends AtmosphereInterceptorWriter {
 
     @Override
     public AsyncIOWriter write(final AtmosphereResponse r, byte[] data, int offset, int length) throws IOException {
+        if (isClosed()) {
+            logger.trace("Response of {} closed, ignoring write", r.resource().uuid());
+            return this;
+        }
+
         logger.trace("Writing {} with transport {}", r.resource().uuid(), r.resource().transport());
         boolean transform = filters.size() > 0 && r.getStatus() < 400;
         if (transform) {
@@ -91,19 +266,63 @@ public class VertxAsyncIOWriter extends AtmosphereInterceptorWriter {
             length = data.length;
         }
 
+        // Wrap instead of copying, the bytes may be shared with other connections.
+        return write(r, Buffer.buffer(Unpooled.wrappedBuffer(data, offset, length)), isBlank(data, offset, length));
+    }
+
+    /**
+     * Write a message held in a {@link ByteBuf}, e.g a message replayed from a {@link ReplayLog}. The message isn't
+     * copied unless an {@link org.atmosphere.cpr.AtmosphereInterceptor} transforms the messages of this response.
+     *
+     * @param r       the {@link AtmosphereResponse}
+     * @param message the message
+     * @return this
+     * @throws IOException if the message can't be written
+     */
+    public AsyncIOWriter write(AtmosphereResponse r, ByteBuf message) throws IOException {
+        if (isClosed()) {
+            return this;
+        }
+
+        if (filters.size() > 0 && r.getStatus() < 400) {
+            byte[] data = new byte[message.readableBytes()];
+            message.readBytes(data);
+            return write(r, data);
+        }
+        return write(r, Buffer.buffer(message), message.readableBytes() == 0);
+    }
+
+    private AsyncIOWriter write(final AtmosphereResponse r, final Buffer bdata, boolean blank) {
+        resource = r.resource();
         pendingWrite.incrementAndGet();
         if (!headerWritten) {
-            out.setChunked(true);
-            constructStatusAndHeaders(r, out);
             headerWritten = true;
+            execute(() -> {
+                if (!http2) {
+                    // HTTP/2 streams are framed, there is no chunked transfer encoding.
+                    out.setChunked(true);
+                }
+                constructStatusAndHeaders(r, out);
+            });
         }
 
-        String sdata = new String(data, offset, length, r.getCharacterEncoding());
-        out.write(sdata);
+        // Blank writes, e.g padding or the id of an SSE event, aren't the delivered message.
+        final AtmosphereResource delivering = r.resource();
+        final LatencyTracer.BroadcasterLatency latency = blank ? null
+                : latencyMark.take(delivering == null ? null : delivering.getAtmosphereResourceEvent().getMessage());
+        if (latency != null) {
+            final long handOff = System.nanoTime();
+            execute(() -> {
+                write(bdata);
+                latency.recordOutbound(System.nanoTime() - handOff);
+            });
+        } else {
+            execute(() -> write(bdata));
+        }
         lastWrite = System.currentTimeMillis();
 
         AtmosphereResourceImpl impl = AtmosphereResourceImpl.class.cast(r.resource());
-        if (sdata.trim().length() > 0 && impl.transport().equals(AtmosphereResource.TRANSPORT.LONG_POLLING)) {
+        if (!blank && impl.transport().equals(AtmosphereResource.TRANSPORT.LONG_POLLING)) {
             close(r);
         }
         return this;
@@ -116,11 +335,176 @@ public class VertxAsyncIOWriter extends AtmosphereInterceptorWriter {
     @Override
     public void close(AtmosphereResponse r) throws IOException {
         if (!isClosed.getAndSet(true)) {
-            try {
-                out.end();
-            } catch (IllegalStateException ex) {
-                logger.trace("", ex);
+            clearConflated();
+            execute(() -> end(null));
+        }
+    }
+
+    /**
+     * Invoked when the response has been ended or its connection closed, writes are ignored from now on.
+     */
+    void closed() {
+        isClosed.set(true);
+        clearConflated();
+    }
+
+    /**
+     * Complete the response so the client reconnects, hinting it to retry after the given delay and on a new
+     * connection. The delay is sent using the Retry-After header when the response hasn't been committed yet, or
+     * using the retry field of an SSE response already committed. Other committed responses get no hint.
+     *
+     * @param retryAfter the delay, in seconds
+     */
+    public void drain(final long retryAfter) {
+        if (!isClosed.getAndSet(true)) {
+            clearConflated();
+            execute(() -> end(retryAfter));
+        }
+    }
+
+    /**
+     * Write the data, or keep it until the drain handler is invoked when the connection, or the HTTP/2 stream's
+     * flow control window, doesn't accept more writes.
+     */
+    private void write(Buffer data) {
+        boolean dropped = false;
+        synchronized (pending) {
+            if (ended) {
+                return;
+            }
+
+            if (!pending.isEmpty() || out.writeQueueFull()) {
+                pending.add(data);
+                pendingBytes += data.length();
+                if (maxPendingBytes <= 0 || pendingBytes <= maxPendingBytes) {
+                    drainHandler();
+                    return;
+                }
+
+                logger.warn("Closing slow connection, {} bytes pending", pendingBytes);
+                pending.clear();
+                pendingBytes = 0;
+                isClosed.set(true);
+                end(null);
+                dropped = true;
+                clearConflated();
+            }
+        }
+
+        if (dropped) {
+            cancel();
+        } else {
+            out.write(data);
+        }
+    }
+
+    // Remove the dropped connection from its Broadcasters, otherwise it stays suspended and receives messages.
+    private void cancel() {
+        AtmosphereResource r = resource;
+        if (r == null) {
+            return;
+        }
+        try {
+            r.close();
+        } catch (IOException | RuntimeException ex) {
+            logger.trace("", ex);
+        }
+    }
+
+    private void drainHandler() {
+        synchronized (pending) {
+            if (!drainHandlerSet) {
+                drainHandlerSet = true;
+                out.drainHandler(v -> onDrain());
+            }
+        }
+    }
+
+    private boolean writable() {
+        synchronized (pending) {
+            return pending.isEmpty() && !out.writeQueueFull();
+        }
+    }
+
+    /**
+     * Invoked when the connection, or the HTTP/2 stream, accepts writes again.
+     */
+    protected void onDrain() {
+        synchronized (pending) {
+            Buffer data;
+            while (!out.writeQueueFull() && (data = pending.poll()) != null) {
+                pendingBytes -= data.length();
+                out.write(data);
+            }
+        }
+        flushConflated();
+    }
+
+    private void end(Long retryAfter) {
+        try {
+            synchronized (pending) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+
+                Buffer data;
+                while ((data = pending.poll()) != null) {
+                    out.write(data);
+                }
+                pendingBytes = 0;
+            }
+
+            if (retryAfter != null) {
+                if (!out.headWritten()) {
+                    out.putHeader("Retry-After", String.valueOf(retryAfter));
+                    if (!http2) {
+                        out.putHeader("Connection", "close");
+                    }
+                } else if (isSse()) {
+                    out.write("retry: " + TimeUnit.SECONDS.toMillis(retryAfter) + "\n\n");
+                }
             }
+            out.end();
+        } catch (IllegalStateException ex) {
+            logger.trace("", ex);
+        }
+    }
+
+    private boolean isSse() {
+        AtmosphereResource r = resource;
+        return r != null && r.transport() == AtmosphereResource.TRANSPORT.SSE;
+    }
+
+    private static boolean isBlank(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            // Same as String.trim(), bytes of multi-byte characters are never whitespace.
+            if ((data[i] & 0xFF) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    LatencyMark latencyMark() {
+        return latencyMark;
+    }
+
+    Conflater conflater() {
+        return conflater;
+    }
+
+    private void clearConflated() {
+        if (conflater != null) {
+            conflater.clear();
+        }
+    }
+
+    private void execute(Runnable write) {
+        if (dispatcher == null) {
+            write.run();
+        } else {
+            dispatcher.execute(write);
         }
     }
 
@@ -131,7 +515,20 @@ public class VertxAsyncIOWriter extends AtmosphereInterceptorWriter {
 
         out.putHeader("Content-Type", contentType != null ? contentType : "text/plain");
         for (Map.Entry<String, String> s : headers.entrySet()) {
+            if (http2 && HTTP1_ONLY_HEADERS.contains(s.getKey().toLowerCase())) {
+                continue;
+            }
             out.putHeader(s.getKey(), s.getValue());
         }
     }
+
+    private final static class EventId {
+        private final long sequence;
+        private final Object message;
+
+        private EventId(long sequence, Object message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.atmosphere.vertx;
 
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Vertx;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.StaticHandler;
@@ -28,6 +29,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import io.vertx.core.Handler;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.net.SocketAddress;
 import io.vertx.core.http.ServerWebSocket;
 import io.vertx.ext.web.RoutingContext;
 
@@ -35,6 +38,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * A boostrap class that can be used to bridge Atmosphere and Vert.x. As simple as
@@ -72,21 +76,106 @@ import java.util.Map;
 public class VertxAtmosphere {
     private static final Logger logger = LoggerFactory.getLogger(VertxAtmosphere.class);
     private final AtmosphereCoordinator coordinator = new AtmosphereCoordinator();
+    private final HttpServer httpServer;
 
     private VertxAtmosphere(Builder b) {
-        Router router = Router.router(b.vertx);
-        router.route().handler(StaticHandler.create(b.webroot));
-        router.get(b.url).handler(handleHttp());
-        router.post(b.url).handler(handleHttp());
+        if (b.domainSocket != null && !b.vertx.isNativeTransportEnabled()) {
+            throw new IllegalStateException("Unable to listen on " + b.domainSocket
+                    + ", Unix domain sockets require the native transport, see "
+                    + PerformanceProfile.class.getName() + ".vertxOptions()");
+        }
 
-        b.httpServer.requestHandler(router::accept);
+        if (b.profile != null) {
+            for (Map.Entry<String, String> e : b.profile.initParams().entrySet()) {
+                b.initParams.putIfAbsent(e.getKey(), e.getValue());
+            }
+            if (b.contextAffineWrites == null) {
+                b.contextAffineWrites = b.profile.contextAffineWrites();
+            }
+        }
 
-        b.httpServer.websocketHandler(handleWebSocket());
+        httpServer = b.httpServer != null ? b.httpServer : createHttpServer(b);
 
-        if (b.resource != null) {
-            coordinator.configure(b);
+        Router router = Router.router(b.vertx);
+        if (b.atmosphereFirst || b.staticCacheSize > 0) {
+            // Long-polling reconnects and POSTed messages don't go through the static file lookup. The static cache
+            // must not remember Atmosphere's paths as misses, nor serve a file shadowing them.
+            router.get(b.url).handler(handleHttp());
+            router.post(b.url).handler(handleHttp());
+            router.route().handler(staticHandler(b));
+        } else {
+            router.route().handler(staticHandler(b));
+            router.get(b.url).handler(handleHttp());
+            router.post(b.url).handler(handleHttp());
         }
+
+        httpServer.requestHandler(router::accept);
+
+        httpServer.websocketHandler(handleWebSocket());
+
+        coordinator.configure(b);
         coordinator.ready();
+
+        if (coordinator.latencyTracer() != null) {
+            router.get(b.latencyTracingPath).handler(coordinator.latencyTracer().handler());
+        }
+
+        if (b.domainSocket != null) {
+            httpServer.listen(SocketAddress.domainSocketAddress(b.domainSocket), result -> {
+                if (result.succeeded()) {
+                    logger.info("Listening on {}", b.domainSocket);
+                } else {
+                    logger.error("Unable to listen on {}", b.domainSocket, result.cause());
+                }
+                listened(b, result);
+            });
+        } else if (b.port > 0) {
+            httpServer.listen(b.port, b.host, result -> {
+                if (result.succeeded()) {
+                    logger.info("Listening on {}:{}", b.host, b.port);
+                } else {
+                    logger.error("Unable to listen on {}:{}", b.host, b.port, result.cause());
+                }
+                listened(b, result);
+            });
+        }
+    }
+
+    private static void listened(Builder b, AsyncResult<HttpServer> result) {
+        if (b.listenHandler != null) {
+            b.listenHandler.handle(result);
+        }
+    }
+
+    private static Handler<RoutingContext> staticHandler(Builder b) {
+        if (b.staticCacheSize > 0 && b.webroot != null) {
+            return new StaticAssetCache(b.vertx, b.webroot, b.staticCacheSize, b.staticCacheEntryTimeout);
+        }
+        return StaticHandler.create(b.webroot);
+    }
+
+    private static HttpServer createHttpServer(Builder b) {
+        HttpServerOptions options = b.httpServerOptions != null ? b.httpServerOptions : new HttpServerOptions();
+        if (b.profile != null) {
+            boolean nativeTransport = b.vertx.isNativeTransportEnabled();
+            if (!nativeTransport) {
+                logger.info("Native transport unavailable, using NIO. Native socket options of {} are ignored", b.profile);
+            }
+            b.profile.configure(options, nativeTransport);
+        }
+        if (b.http2) {
+            options.setHttp2ClearTextEnabled(true).setUseAlpn(options.isSsl());
+        }
+        return b.vertx.createHttpServer(options);
+    }
+
+    /**
+     * Return the {@link HttpServer} used by this instance, either the one set using
+     * {@link Builder#httpServer(HttpServer)} or the one created by the {@link Builder}.
+     * @return the {@link HttpServer}
+     */
+    public HttpServer httpServer() {
+        return httpServer;
     }
 
     /**
@@ -120,6 +209,23 @@ public class VertxAtmosphere {
         protected Class<? extends BroadcasterCache> broadcasterCache;
         protected final List<AtmosphereInterceptor> interceptors = new ArrayList<AtmosphereInterceptor>();
         protected String webroot;
+        protected Boolean contextAffineWrites;
+        protected PerformanceProfile profile;
+        protected HttpServerOptions httpServerOptions;
+        protected int port = -1;
+        protected String host = HttpServerOptions.DEFAULT_HOST;
+        protected String latencyTracingPath;
+        protected boolean http2;
+        protected long maxPendingWriteBytes = -1;
+        protected boolean atmosphereFirst;
+        protected long staticCacheSize;
+        protected long staticCacheEntryTimeout = StaticAssetCache.DEFAULT_CACHE_ENTRY_TIMEOUT;
+        protected ConflationPolicy conflationPolicy;
+        protected ReplayLogs replayLogs;
+        protected EncodedMessageCache encodedMessageCache;
+        protected String domainSocket;
+        protected boolean trustForwardedHeaders;
+        protected Handler<AsyncResult<HttpServer>> listenHandler;
 
         public Builder url(String url) {
             this.url = url;
@@ -134,6 +240,41 @@ public class VertxAtmosphere {
             return this;
         }
 
+        /**
+         * Match the Atmosphere {@link #url(String)} routes before the static resources of the {@link #webroot(String)}.
+         * Default is false, static resources are looked up first.
+         * @param atmosphereFirst true to route Atmosphere's requests first
+         * @return this
+         */
+        public Builder atmosphereFirst(boolean atmosphereFirst) {
+            this.atmosphereFirst = atmosphereFirst;
+            return this;
+        }
+
+        /**
+         * Serve the static resources of the {@link #webroot(String)} from memory, see {@link StaticAssetCache}.
+         * Atmosphere's {@link #url(String)} routes are then matched first, see {@link #atmosphereFirst(boolean)}.
+         * @param maxBytes the maximum number of bytes cached
+         * @return this
+         */
+        public Builder staticCache(long maxBytes) {
+            this.staticCacheSize = maxBytes;
+            return this;
+        }
+
+        /**
+         * Serve the static resources of the {@link #webroot(String)} from memory, see {@link #staticCache(long)}.
+         * @param maxBytes          the maximum number of bytes cached
+         * @param cacheEntryTimeout the time, in milliseconds, after which a cached resource is revalidated against
+         *                          its file, or -1 to never revalidate. Default is 30000.
+         * @return this
+         */
+        public Builder staticCache(long maxBytes, long cacheEntryTimeout) {
+            this.staticCacheSize = maxBytes;
+            this.staticCacheEntryTimeout = cacheEntryTimeout;
+            return this;
+        }
+
         /**
          * Set the Vert.x {@link HttpServer}
          * @param httpServer a Vert.x {@link HttpServer}
@@ -144,6 +285,111 @@ public class VertxAtmosphere {
             return this;
         }
 
+        /**
+         * The {@link HttpServerOptions} used when no {@link HttpServer} has been set using
+         * {@link #httpServer(HttpServer)}, in which case the {@link HttpServer} is created by this Builder.
+         * @param httpServerOptions the {@link HttpServerOptions}
+         * @return this
+         */
+        public Builder httpServerOptions(HttpServerOptions httpServerOptions) {
+            this.httpServerOptions = httpServerOptions;
+            return this;
+        }
+
+        /**
+         * Tune the transport and Atmosphere for a {@link PerformanceProfile}. Socket options are only applied when
+         * the {@link HttpServer} is created by this Builder, e.g when {@link #httpServer(HttpServer)} isn't used.
+         * Init params set using {@link #initParam(String, String)}, and {@link #contextAffineWrites(boolean)}, take
+         * precedence over the profile's ones.
+         * @param profile a {@link PerformanceProfile}
+         * @return this
+         */
+        public Builder profile(PerformanceProfile profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * Accept HTTP/2 connections when the {@link HttpServer} is created by this Builder: h2c (prior knowledge or
+         * upgrade) for clear text, and ALPN negotiation when SSL is enabled using {@link #httpServerOptions(HttpServerOptions)}.
+         * Streaming and SSE clients then share a single TCP connection per origin.
+         * @param http2 true to enable HTTP/2
+         * @return this
+         */
+        public Builder http2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        /**
+         * The maximum number of bytes kept for an HTTP connection, or HTTP/2 stream, which doesn't accept more
+         * writes because of TCP back pressure or HTTP/2 flow control. The connection is closed once exceeded.
+         * Default is -1, no limit.
+         * @param maxPendingWriteBytes the maximum number of pending bytes
+         * @return this
+         */
+        public Builder maxPendingWriteBytes(long maxPendingWriteBytes) {
+            this.maxPendingWriteBytes = maxPendingWriteBytes;
+            return this;
+        }
+
+        /**
+         * Listen on the port once the {@link VertxAtmosphere} is built, see {@link #listenHandler(Handler)}.
+         * @param port the port
+         * @return this
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Listen on a Unix domain socket instead of {@link #port(int)} once the {@link VertxAtmosphere} is built,
+         * e.g when running behind a local proxy. Requires the native transport, see {@link PerformanceProfile#vertxOptions()}.
+         * The client's address is then read from the headers set by the proxy, see {@link #trustForwardedHeaders(boolean)}.
+         * {@link #build()} throws an {@link IllegalStateException} if the native transport isn't enabled.
+         * @param path the path of the socket file
+         * @return this
+         */
+        public Builder domainSocket(String path) {
+            this.domainSocket = path;
+            this.trustForwardedHeaders = true;
+            return this;
+        }
+
+        /**
+         * Invoked once the {@link HttpServer} listens on the {@link #port(int)} or the {@link #domainSocket(String)},
+         * or failed to, e.g because the port is already in use.
+         * @param listenHandler the handler
+         * @return this
+         */
+        public Builder listenHandler(Handler<AsyncResult<HttpServer>> listenHandler) {
+            this.listenHandler = listenHandler;
+            return this;
+        }
+
+        /**
+         * Read the client's address, host and scheme from the Forwarded and X-Forwarded-* headers. Only enable it when
+         * every request goes through a proxy setting those headers. Default is false, unless {@link #domainSocket(String)}
+         * is set.
+         * @param trustForwardedHeaders true to read the forwarded headers
+         * @return this
+         */
+        public Builder trustForwardedHeaders(boolean trustForwardedHeaders) {
+            this.trustForwardedHeaders = trustForwardedHeaders;
+            return this;
+        }
+
+        /**
+         * The host to listen on when {@link #port(int)} is set. Default is 0.0.0.0
+         * @param host the host
+         * @return this
+         */
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
         /**
          * Create the associated {@link VertxAtmosphere}
          * @return a  {@link VertxAtmosphere}
@@ -232,6 +478,85 @@ public class VertxAtmosphere {
             return this;
         }
 
+        /**
+         * Deliver the writes of every connection from the event loop owning it. A broadcast then executes a single
+         * task per event loop, writing to all the connections of that loop, instead of one task per write.
+         *
+         * @param contextAffineWrites true to batch writes per event loop
+         * @return this
+         */
+        public Builder contextAffineWrites(boolean contextAffineWrites) {
+            this.contextAffineWrites = contextAffineWrites;
+            return this;
+        }
+
+        /**
+         * Record the latency of every broadcasted message, per {@link Broadcaster}, and serve the histograms as JSON
+         * on the path. See {@link LatencyTracer}.
+         *
+         * @param path the path serving the histograms, e.g /admin/latency
+         * @return this
+         */
+        public Builder latencyTracing(String path) {
+            this.latencyTracingPath = path;
+            return this;
+        }
+
+        /**
+         * Deliver only the latest message per key to the slow connections of a {@link Broadcaster}.
+         * See {@link ConflationPolicy}.
+         *
+         * @param broadcasterId the {@link Broadcaster#getID()}
+         * @param key           return the key of a message, or null if the message must never be conflated
+         * @return this
+         */
+        public Builder conflate(String broadcasterId, Function<String, String> key) {
+            if (conflationPolicy == null) {
+                conflationPolicy = new ConflationPolicy();
+            }
+            conflationPolicy.conflate(broadcasterId, key);
+            return this;
+        }
+
+        /**
+         * The interval, in milliseconds, at which conflated messages are written. Default is 100.
+         *
+         * @param interval the interval in milliseconds
+         * @return this
+         */
+        public Builder conflationInterval(long interval) {
+            if (conflationPolicy == null) {
+                conflationPolicy = new ConflationPolicy();
+            }
+            conflationPolicy.interval(interval);
+            return this;
+        }
+
+        /**
+         * Log every broadcasted message to memory-mapped files, so messages can be replayed to clients reconnecting
+         * after a restart. Unless a {@link BroadcasterCache} is set, {@link ReplayLogBroadcasterCache} is used.
+         *
+         * @param replayLogs the {@link ReplayLogs}, e.g new ReplayLogs(new File("replay")).retention(60000)
+         * @return this
+         */
+        public Builder replayLog(ReplayLogs replayLogs) {
+            this.replayLogs = replayLogs;
+            return this;
+        }
+
+        /**
+         * Encode, and transform using the {@link org.atmosphere.cpr.AsyncIOInterceptor}s, each message once for all
+         * the connections it is delivered to. Disabled by default. Use a {@link MemoizingEncoder} so the POJOs
+         * broadcasted to a {@link org.atmosphere.config.service.ManagedService} are serialized once as well.
+         *
+         * @param encodedMessageCache the {@link EncodedMessageCache}, e.g new EncodedMessageCache()
+         * @return this
+         */
+        public Builder encodedMessageCache(EncodedMessageCache encodedMessageCache) {
+            this.encodedMessageCache = encodedMessageCache;
+            return this;
+        }
+
         public Builder vertx(Vertx vertx) {
             this.vertx = vertx;
             return this;
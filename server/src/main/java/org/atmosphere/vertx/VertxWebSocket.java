@@ -16,13 +16,22 @@
 package org.atmosphere.vertx;
 
 import org.atmosphere.cpr.AtmosphereConfig;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.AtmosphereResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.ServerWebSocket;
 import io.vertx.core.http.WebSocketFrame;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -32,12 +41,98 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class VertxWebSocket extends org.atmosphere.websocket.WebSocket {
     private static final Logger logger = LoggerFactory.getLogger(VertxWebSocket.class);
+    // Creates a text frame wrapping a ByteBuf, or null if the Vert.x internal frame class isn't available.
+    private static final MethodHandle TEXT_FRAME = textFrameConstructor();
+    // The message being written, before the AtmosphereInterceptors transform it.
+    private static final ThreadLocal<Writing> WRITING = new ThreadLocal<Writing>();
     private final AtomicBoolean isOpen = new AtomicBoolean(true);
     private final ServerWebSocket webSocket;
+    private final ContextDispatcher dispatcher;
+    private final LatencyMark latencyMark = new LatencyMark();
+    private final AtomicBoolean drainHandlerSet = new AtomicBoolean(false);
+    private ConflationPolicy conflationPolicy;
+    private Conflater conflater;
+    private EncodedMessageCache encodedMessageCache;
 
     public VertxWebSocket(final AtmosphereConfig config, final ServerWebSocket webSocket) {
+        this(config, webSocket, null);
+    }
+
+    /**
+     * Create a {@link VertxWebSocket} which delivers its writes through a {@link ContextDispatcher}
+     *
+     * @param config     the {@link AtmosphereConfig}
+     * @param webSocket  the {@link ServerWebSocket}
+     * @param dispatcher the {@link ContextDispatcher} of the event loop owning the connection, or null
+     */
+    public VertxWebSocket(final AtmosphereConfig config, final ServerWebSocket webSocket, final ContextDispatcher dispatcher) {
         super(config);
         this.webSocket = webSocket;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Conflate the messages of this WebSocket when it doesn't accept more writes. See {@link ConflationPolicy}.
+     *
+     * @param conflationPolicy the {@link ConflationPolicy}, or null
+     * @return this
+     */
+    public VertxWebSocket conflation(ConflationPolicy conflationPolicy) {
+        this.conflationPolicy = conflationPolicy;
+        this.conflater = conflationPolicy == null ? null : new Conflater(conflationPolicy, this::flushConflated);
+        return this;
+    }
+
+    /**
+     * Share the encoded messages, and their transformations, with the other connections. See
+     * {@link EncodedMessageCache}.
+     *
+     * @param encodedMessageCache the {@link EncodedMessageCache}, or null
+     * @return this
+     */
+    public VertxWebSocket encodedMessageCache(EncodedMessageCache encodedMessageCache) {
+        this.encodedMessageCache = encodedMessageCache;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public org.atmosphere.websocket.WebSocket write(AtmosphereResponse r, String data) throws IOException {
+        String key = conflater == null ? null : conflationPolicy.key(conflater.take(data), data);
+        if (key == null && encodedMessageCache == null) {
+            return super.write(r, data);
+        }
+
+        WRITING.set(new Writing(data, key));
+        try {
+            return super.write(r, data);
+        } finally {
+            WRITING.remove();
+        }
+    }
+
+    /**
+     * Transform the message using the {@link org.atmosphere.cpr.AsyncIOInterceptor}s, once for all the connections
+     * sharing the {@link EncodedMessageCache}.
+     */
+    @Override
+    protected byte[] transform(final AtmosphereResponse response, final byte[] b, final int offset, final int length)
+            throws IOException {
+        final Writing writing = WRITING.get();
+        if (encodedMessageCache == null || writing == null) {
+            return super.transform(response, b, offset, length);
+        }
+
+        String charset = response.getCharacterEncoding();
+        byte[] transformed = encodedMessageCache.transform(writing.message, charset, filters,
+                () -> super.transform(response, b, offset, length));
+        // Text frames are always UTF-8, the transformed message is decoded then encoded again otherwise.
+        if (charset.equalsIgnoreCase("UTF-8")) {
+            writing.transformed = transformed;
+        }
+        return transformed;
     }
 
     /**
@@ -47,7 +142,89 @@ public class VertxWebSocket extends org.atmosphere.websocket.WebSocket {
     public org.atmosphere.websocket.WebSocket write(String data) throws IOException {
         logger.trace("WebSocket.write()");
 
-        webSocket.writeFrame(WebSocketFrame.textFrame(data, true));
+        Writing writing = WRITING.get();
+        if (conflater != null) {
+            String key = writing == null ? null : writing.key;
+            if (key != null && conflater.offer(key, data, this::writable)) {
+                if (!drainHandlerSet.getAndSet(true)) {
+                    webSocket.drainHandler(v -> flushConflated());
+                }
+                return this;
+            }
+        }
+
+        if (writing != null && writing.transformed != null) {
+            // Written by super.write(AtmosphereResponse, String), decoded from the transformed bytes.
+            writeText(writing.transformed);
+        } else {
+            writeText(data);
+        }
+        return this;
+    }
+
+    /**
+     * Write the pending conflated messages, if the WebSocket accepts writes.
+     */
+    public void flushConflated() {
+        if (conflater == null) {
+            return;
+        }
+
+        if (!isOpen()) {
+            conflater.clear();
+            return;
+        }
+
+        conflater.flush(this::writable, data -> {
+            try {
+                writeText(data);
+            } catch (IOException | IllegalStateException ex) {
+                logger.trace("", ex);
+            }
+        });
+    }
+
+    private void clearConflated() {
+        if (conflater != null) {
+            conflater.clear();
+        }
+    }
+
+    private boolean writable() {
+        return !webSocket.writeQueueFull();
+    }
+
+    private void writeText(String data) throws IOException {
+        writeText(encode(data));
+    }
+
+    private void writeText(byte[] b) {
+        // The bytes may be shared with other connections, they are wrapped instead of copied.
+        writeFrame(textFrame(Unpooled.wrappedBuffer(b)));
+        lastWrite = System.currentTimeMillis();
+    }
+
+    private byte[] encode(String data) throws IOException {
+        // Text frames are always UTF-8.
+        return encodedMessageCache == null ? data.getBytes(StandardCharsets.UTF_8)
+                : encodedMessageCache.encode(data, "UTF-8");
+    }
+
+    /**
+     * Write a text message held in a {@link ByteBuf}, e.g a message replayed from a {@link ReplayLog}. The message
+     * isn't copied unless an {@link org.atmosphere.cpr.AtmosphereInterceptor} transforms the messages of this
+     * WebSocket.
+     *
+     * @param r       the {@link AtmosphereResponse}
+     * @param message the UTF-8 message
+     * @return this
+     * @throws IOException if the message can't be written
+     */
+    public org.atmosphere.websocket.WebSocket write(AtmosphereResponse r, ByteBuf message) throws IOException {
+        if (!filters.isEmpty()) {
+            return write(r, message.toString(StandardCharsets.UTF_8));
+        }
+        writeFrame(textFrame(message));
         lastWrite = System.currentTimeMillis();
         return this;
     }
@@ -59,10 +236,73 @@ public class VertxWebSocket extends org.atmosphere.websocket.WebSocket {
     public org.atmosphere.websocket.WebSocket write(byte[] data, int offset, int length) throws IOException {
         Buffer buf = Buffer.buffer().appendBytes(data, offset, length);
 
-        webSocket.writeFrame(WebSocketFrame.binaryFrame(buf, true));
+        writeFrame(WebSocketFrame.binaryFrame(buf, true));
         return this;
     }
 
+    /**
+     * The public {@link WebSocketFrame#textFrame(String, boolean)} only accepts a String, which Vert.x encodes again.
+     * WebSocketFrameImpl wraps the bytes instead, but it is internal to Vert.x and may change between versions,
+     * so it is looked up reflectively, which also keeps the bundle from importing Vert.x's impl packages.
+     */
+    private static MethodHandle textFrameConstructor() {
+        try {
+            ClassLoader vertx = WebSocketFrame.class.getClassLoader();
+            Class<?> frameType = Class.forName("io.vertx.core.http.impl.FrameType", true, vertx);
+            Class<?> frameImpl = Class.forName("io.vertx.core.http.impl.ws.WebSocketFrameImpl", true, vertx);
+            Constructor<?> c = frameImpl.getConstructor(frameType, ByteBuf.class, boolean.class);
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Object text = Enum.valueOf((Class<? extends Enum>) frameType, "TEXT");
+            return MethodHandles.insertArguments(MethodHandles.publicLookup().unreflectConstructor(c), 0, text)
+                    .asType(MethodType.methodType(WebSocketFrame.class, ByteBuf.class, boolean.class));
+        } catch (Throwable t) {
+            logger.debug("Text frames will be copied, unable to use WebSocketFrameImpl", t);
+            return null;
+        }
+    }
+
+    private static WebSocketFrame textFrame(ByteBuf message) {
+        if (TEXT_FRAME != null) {
+            try {
+                return (WebSocketFrame) TEXT_FRAME.invokeExact(message, true);
+            } catch (Throwable t) {
+                logger.trace("", t);
+            }
+        }
+        return WebSocketFrame.textFrame(message.toString(StandardCharsets.UTF_8), true);
+    }
+
+    private void writeFrame(final WebSocketFrame frame) {
+        AtmosphereResource r = resource();
+        final LatencyTracer.BroadcasterLatency latency =
+                latencyMark.take(r == null ? null : r.getAtmosphereResourceEvent().getMessage());
+        if (latency != null) {
+            final long handOff = System.nanoTime();
+            execute(() -> {
+                webSocket.writeFrame(frame);
+                latency.recordOutbound(System.nanoTime() - handOff);
+            });
+        } else {
+            execute(() -> webSocket.writeFrame(frame));
+        }
+    }
+
+    private void execute(Runnable write) {
+        if (dispatcher == null) {
+            write.run();
+        } else {
+            dispatcher.execute(write);
+        }
+    }
+
+    LatencyMark latencyMark() {
+        return latencyMark;
+    }
+
+    Conflater conflater() {
+        return conflater;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -76,11 +316,44 @@ public class VertxWebSocket extends org.atmosphere.websocket.WebSocket {
      */
     @Override
     public void close() {
-        if (!isOpen()) {
-            isOpen.set(false);
-            webSocket.close();
+        if (isOpen.getAndSet(false)) {
+            clearConflated();
+            try {
+                webSocket.close();
+            } catch (IllegalStateException ex) {
+                // Already closed by the client.
+                logger.trace("", ex);
+            }
         }
     }
-}
 
+    /**
+     * Close the underlying {@link ServerWebSocket} with the given status code, once all pending writes
+     * have been delivered.
+     *
+     * @param statusCode the WebSocket close status code, e.g 1001 when the server is going away.
+     */
+    public void close(final short statusCode) {
+        if (isOpen.getAndSet(false)) {
+            clearConflated();
+            execute(() -> {
+                try {
+                    webSocket.close(statusCode);
+                } catch (IllegalStateException ex) {
+                    logger.trace("", ex);
+                }
+            });
+        }
+    }
+
+    private final static class Writing {
+        private final String message;
+        private final String key;
+        private byte[] transformed;
 
+        private Writing(String message, String key) {
+            this.message = message;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ConflationPolicyTest {
+
+    @Test
+    public void keyOfSendingBroadcasterOnly() {
+        ConflationPolicy policy = new ConflationPolicy()
+                .conflate("/quotes", m -> m.substring(0, m.indexOf(':')));
+
+        assertEquals(policy.key("/quotes", "ACME:42"), "ACME");
+        assertNull(policy.key("/chat", "ACME:42"));
+        assertNull(policy.key(null, "ACME:42"));
+    }
+
+    @Test
+    public void tagMatchesTheTaggedMessageOnly() {
+        Conflater conflater = new Conflater(new ConflationPolicy(), () -> {
+        });
+        String message = "ACME:42";
+
+        conflater.tag("/quotes", message);
+        assertEquals(conflater.take(message), "/quotes");
+        assertNull(conflater.take(message));
+
+        // A message written after a delivery aborted by a later filter must not use its tag.
+        conflater.tag("/quotes", message);
+        assertNull(conflater.take(new String(message)));
+        assertNull(conflater.take(message));
+    }
+
+    @Test
+    public void keepLatestValuePerKey() {
+        ConflationPolicy policy = new ConflationPolicy();
+        Conflater conflater = new Conflater(policy, () -> {
+        });
+
+        assertFalse(conflater.offer("ACME", "ACME:1", () -> true));
+        assertTrue(conflater.offer("ACME", "ACME:2", () -> false));
+        assertTrue(conflater.offer("INIT", "INIT:1", () -> false));
+        assertTrue(conflater.offer("ACME", "ACME:3", () -> true));
+        assertEquals(conflater.size(), 2);
+
+        List<String> written = new ArrayList<String>();
+        conflater.flush(() -> true, written::add);
+        assertEquals(written.get(0), "ACME:3");
+        assertEquals(written.get(1), "INIT:1");
+        assertEquals(conflater.size(), 0);
+    }
+
+    @Test
+    public void flushEveryConnectionWhenOneFails() {
+        ConflationPolicy policy = new ConflationPolicy();
+        final AtomicInteger flushed = new AtomicInteger();
+        Conflater failing = new Conflater(policy, () -> {
+            throw new IllegalStateException("closed");
+        });
+        Conflater[] ok = new Conflater[1];
+        ok[0] = new Conflater(policy, () -> {
+            flushed.incrementAndGet();
+            ok[0].flush(() -> true, m -> {
+            });
+        });
+
+        failing.offer("ACME", "ACME:1", () -> false);
+        ok[0].offer("ACME", "ACME:1", () -> false);
+
+        policy.flushPending();
+        assertEquals(flushed.get(), 1);
+
+        // Both connections left the pending set, the next run visits none.
+        policy.flushPending();
+        assertEquals(flushed.get(), 1);
+    }
+
+    @Test
+    public void clearedConnectionLeavesPendingSet() {
+        ConflationPolicy policy = new ConflationPolicy();
+        final AtomicInteger flushed = new AtomicInteger();
+        Conflater conflater = new Conflater(policy, flushed::incrementAndGet);
+
+        conflater.offer("ACME", "ACME:1", () -> false);
+        conflater.clear();
+        policy.flushPending();
+
+        assertEquals(flushed.get(), 0);
+        assertEquals(conflater.size(), 0);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import org.atmosphere.cpr.AsyncIOWriter;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.AtmosphereResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectionRegistryTest {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionRegistryTest.class);
+
+    private static final int KEYS = 16;
+
+    @Test
+    public void failingConnectionDoesNotAbortSendToKey() {
+        AtomicInteger written = new AtomicInteger();
+        ConnectionRegistry registry = new ConnectionRegistry()
+                .register(resource("a"), new CountingWriter(written, true))
+                .register(resource("b"), new CountingWriter(written, false))
+                .bind("group", "a")
+                .bind("group", "b");
+
+        assertEquals(registry.sendToKey("group", "message"), 1);
+        assertEquals(written.get(), 1);
+    }
+
+    @Test
+    public void writesHoldTheResourceMonitor() throws InterruptedException {
+        AtmosphereResource r = resource("a");
+        AtomicInteger written = new AtomicInteger();
+        ConnectionRegistry registry = new ConnectionRegistry().register(r, new CountingWriter(written, false));
+
+        Thread sender = new Thread(() -> registry.send("a", "message"));
+        // Like a Broadcaster delivering a message to the resource.
+        synchronized (r) {
+            sender.start();
+            sender.join(200);
+            assertEquals(written.get(), 0);
+        }
+        sender.join();
+        assertEquals(written.get(), 1);
+    }
+
+    @Test
+    public void churn() throws InterruptedException {
+        final int connections = Integer.getInteger("connectionRegistry.churn", 20000);
+        final int threads = 4;
+        ConnectionRegistry registry = new ConnectionRegistry();
+        ConcurrentLinkedQueue<String> registered = new ConcurrentLinkedQueue<String>();
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger disconnected = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong sends = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads * 3);
+        CountDownLatch connecting = new CountDownLatch(threads);
+        CountDownLatch disconnecting = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                int i;
+                while ((i = connected.getAndIncrement()) < connections) {
+                    String uuid = "uuid-" + i;
+                    registry.register(resource(uuid), new CountingWriter(written, i % 10 == 0));
+                    registry.bind("group-" + i % KEYS, uuid);
+                    registered.add(uuid);
+                }
+                connecting.countDown();
+            });
+            executor.execute(() -> {
+                while (disconnected.get() < connections) {
+                    String uuid = registered.poll();
+                    if (uuid == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    // Bind a key concurrently with the disconnection.
+                    registry.bind("user-" + uuid, uuid);
+                    registry.remove(uuid);
+                    disconnected.incrementAndGet();
+                }
+                disconnecting.countDown();
+            });
+            executor.execute(() -> {
+                int i = 0;
+                while (!done.get()) {
+                    registry.sendToKey("group-" + i++ % KEYS, "message");
+                    sends.incrementAndGet();
+                }
+            });
+        }
+
+        assertTrue(connecting.await(60, TimeUnit.SECONDS));
+        assertTrue(disconnecting.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        logger.info("{} connections registered, bound and removed in {} ms, {} sendToKey, {} writes",
+                connections, TimeUnit.NANOSECONDS.toMillis(elapsed), sends.get(), written.get());
+
+        assertEquals(registry.size(), 0);
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(registry.uuids("group-" + i).isEmpty());
+        }
+        for (int i = 0; i < connections; i++) {
+            assertTrue(registry.uuids("user-uuid-" + i).isEmpty());
+        }
+    }
+
+    private static AtmosphereResource resource(String uuid) {
+        return stub(AtmosphereResource.class, uuid);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Object uuid) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "uuid":
+                    return uuid;
+                case "response":
+                    return stub(HttpServerResponse.class, null);
+                case "version":
+                    return HttpVersion.HTTP_1_1;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+            }
+        });
+    }
+
+    private final static class CountingWriter extends VertxAsyncIOWriter {
+        private final AtomicInteger written;
+        private final boolean failing;
+
+        private CountingWriter(AtomicInteger written, boolean failing) {
+            super(stub(HttpServerRequest.class, null));
+            this.written = written;
+            this.failing = failing;
+        }
+
+        @Override
+        public AsyncIOWriter write(AtmosphereResponse r, String data) {
+            if (failing) {
+                throw new IllegalStateException("Response has already been written");
+            }
+            written.incrementAndGet();
+            return this;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ContextDispatcherTest {
+    private static final Logger logger = LoggerFactory.getLogger(ContextDispatcherTest.class);
+
+    private static final int SUBSCRIBERS = Integer.getInteger("contextDispatcherTest.subscribers", 10000);
+    private static final int MESSAGES = Integer.getInteger("contextDispatcherTest.messages", 10);
+    private static final int EVENT_LOOPS = 4;
+
+    private Vertx vertx;
+
+    @BeforeMethod
+    public void start() {
+        vertx = Vertx.vertx();
+    }
+
+    @AfterMethod
+    public void stop() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        vertx.close(v -> closed.countDown());
+        closed.await(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void batchWritesInOrder() throws InterruptedException {
+        final AtomicInteger tasks = new AtomicInteger();
+        Context context = counting(vertx.getOrCreateContext(), tasks);
+        ContextDispatcher dispatcher = new ContextDispatcher(context);
+
+        final int writes = 100000;
+        final List<Integer> executed = new ArrayList<Integer>(writes);
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < writes; i++) {
+            final int write = i;
+            dispatcher.execute(() -> {
+                executed.add(write);
+                if (write == writes - 1) {
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(executed.size(), writes);
+        for (int i = 0; i < writes; i++) {
+            assertEquals(executed.get(i).intValue(), i);
+        }
+        assertTrue(tasks.get() < writes, tasks.get() + " tasks scheduled for " + writes + " writes");
+    }
+
+    /**
+     * Deliver every message to every subscriber, the subscribers being spread over a few event loops, once through
+     * a {@link ContextDispatcher} per event loop and once using a task per write.
+     */
+    @Test
+    public void fanOut() throws InterruptedException {
+        List<Context> contexts = new ArrayList<Context>();
+        for (int i = 0; i < EVENT_LOOPS; i++) {
+            contexts.add(vertx.getOrCreateContext());
+        }
+        final List<ContextDispatcher> dispatchers = new ArrayList<ContextDispatcher>();
+        for (Context c : contexts) {
+            dispatchers.add(new ContextDispatcher(c));
+        }
+
+        // Warm up both paths.
+        fanOut(contexts, (subscriber, write) -> dispatchers.get(subscriber % EVENT_LOOPS).execute(write));
+        fanOut(contexts, (subscriber, write) -> contexts.get(subscriber % EVENT_LOOPS).runOnContext(v -> write.run()));
+
+        long batched = fanOut(contexts,
+                (subscriber, write) -> dispatchers.get(subscriber % EVENT_LOOPS).execute(write));
+        long perWrite = fanOut(contexts,
+                (subscriber, write) -> contexts.get(subscriber % EVENT_LOOPS).runOnContext(v -> write.run()));
+
+        logger.info("{} messages to {} subscribers on {} event loops: ContextDispatcher {} ms, runOnContext {} ms",
+                MESSAGES, SUBSCRIBERS, EVENT_LOOPS, TimeUnit.NANOSECONDS.toMillis(batched),
+                TimeUnit.NANOSECONDS.toMillis(perWrite));
+    }
+
+    /**
+     * @return the time, in nanoseconds, until every write has been executed
+     */
+    private long fanOut(List<Context> contexts, Delivery delivery) throws InterruptedException {
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final int writes = SUBSCRIBERS * MESSAGES;
+        Runnable write = () -> {
+            if (written.incrementAndGet() == writes) {
+                done.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int m = 0; m < MESSAGES; m++) {
+            for (int s = 0; s < SUBSCRIBERS; s++) {
+                delivery.deliver(s, write);
+            }
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(written.get(), writes);
+        return elapsed;
+    }
+
+    private interface Delivery {
+        void deliver(int subscriber, Runnable write);
+    }
+
+    // Count the tasks scheduled on the context.
+    private static Context counting(final Context context, final AtomicInteger tasks) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("runOnContext")) {
+                        tasks.incrementAndGet();
+                    }
+                    return method.invoke(context, args);
+                });
+    }
+}
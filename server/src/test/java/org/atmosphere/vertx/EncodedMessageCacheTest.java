@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class EncodedMessageCacheTest {
+
+    @Test
+    public void encodeOncePerMessage() throws IOException {
+        EncodedMessageCache cache = new EncodedMessageCache();
+        String message = "{\"symbol\":\"ACME\"}";
+
+        byte[] b = cache.encode(message, "UTF-8");
+        assertEquals(b, message.getBytes(StandardCharsets.UTF_8));
+        assertSame(cache.encode(message, "utf-8"), b);
+        // Looked up by identity.
+        assertNotSame(cache.encode(new String(message), "UTF-8"), b);
+        assertEquals(cache.encode(message, "UTF-16"), message.getBytes(StandardCharsets.UTF_16));
+    }
+
+    @Test
+    public void transformOncePerMessageAndInterceptors() throws IOException {
+        EncodedMessageCache cache = new EncodedMessageCache();
+        AtomicInteger transformed = new AtomicInteger();
+        EncodedMessageCache.Transform transform = () -> {
+            transformed.incrementAndGet();
+            return "7|message".getBytes(StandardCharsets.UTF_8);
+        };
+        String message = "message";
+        Object shared = new Object();
+        List<Object> interceptors = Collections.singletonList(shared);
+
+        byte[] b = cache.transform(message, "UTF-8", interceptors, transform);
+        assertSame(cache.transform(message, "UTF-8", Collections.singletonList(shared), transform), b);
+        assertEquals(transformed.get(), 1);
+
+        // An interceptor created per connection never shares its output.
+        cache.transform(message, "UTF-8", Arrays.asList(shared, new Object()), transform);
+        assertEquals(transformed.get(), 2);
+        cache.transform(message, "UTF-16", interceptors, transform);
+        assertEquals(transformed.get(), 3);
+    }
+
+    @Test
+    public void memoizingEncoderEncodesOncePerMessage() {
+        AtomicInteger encoded = new AtomicInteger();
+        MemoizingEncoder<List<String>, String> encoder = new MemoizingEncoder<List<String>, String>() {
+            @Override
+            protected String doEncode(List<String> message) {
+                encoded.incrementAndGet();
+                return String.join(",", message);
+            }
+        };
+        List<String> message = Arrays.asList("ACME", "42");
+
+        String s = encoder.encode(message);
+        assertEquals(s, "ACME,42");
+        assertSame(encoder.encode(message), s);
+        assertEquals(encoded.get(), 1);
+
+        encoder.encode(Arrays.asList("ACME", "42"));
+        assertEquals(encoded.get(), 2);
+    }
+}
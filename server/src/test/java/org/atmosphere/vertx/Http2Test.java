@@ -0,0 +1,288 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.Http2Settings;
+import org.atmosphere.config.service.AtmosphereHandlerService;
+import org.atmosphere.cpr.AtmosphereHandler;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.AtmosphereResourceEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Requests sent over h2c, HTTP/2 without TLS and without upgrade, on the loopback interface.
+ */
+public class Http2Test {
+    private static final Logger logger = LoggerFactory.getLogger(Http2Test.class);
+
+    private static final int MESSAGES = 200;
+    private static final int MESSAGE_SIZE = 16 * 1024;
+    private static final int SUBSCRIPTIONS = Integer.getInteger("http2Test.subscriptions", 10000);
+
+    private Vertx vertx;
+    private HttpClient client;
+    private File webroot;
+
+    @BeforeMethod
+    public void start() throws IOException {
+        StreamingHandler.writes.set(0);
+        SubscriptionHandler.connections.clear();
+        webroot = Files.createTempDirectory("webroot").toFile();
+        vertx = Vertx.vertx();
+        client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(false)
+                .setInitialSettings(new Http2Settings().setInitialWindowSize(65535)));
+    }
+
+    @AfterMethod
+    public void stop() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        client.close();
+        vertx.close(v -> closed.countDown());
+        closed.await(10, TimeUnit.SECONDS);
+        delete(webroot);
+    }
+
+    @Test
+    public void baseUriOfHttp2Request() throws Exception {
+        HttpServer server = vertx.createHttpServer(new HttpServerOptions().setHttp2ClearTextEnabled(true))
+                .requestHandler(request -> request.response().end(AtmosphereUtils.getBaseUri(request)));
+        int port = listen(server);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<HttpVersion> version = new AtomicReference<HttpVersion>();
+        final AtomicReference<String> baseUri = new AtomicReference<String>();
+        client.getNow(port, "localhost", "/", response -> {
+            version.set(response.version());
+            response.bodyHandler(body -> {
+                baseUri.set(body.toString());
+                latch.countDown();
+            });
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(version.get(), HttpVersion.HTTP_2);
+        assertEquals(baseUri.get(), "http://localhost:" + port + "/");
+    }
+
+    @Test
+    public void streamingRespectsFlowControl() throws Exception {
+        HttpServer server = vertx.createHttpServer(new HttpServerOptions().setHttp2ClearTextEnabled(true));
+        new VertxAtmosphere.Builder()
+                .resource(StreamingHandler.class)
+                .url("/stream")
+                .webroot(webroot.getPath())
+                .httpServer(server)
+                .vertx(vertx)
+                .build();
+        int port = listen(server);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<HttpVersion> version = new AtomicReference<HttpVersion>();
+        final Buffer body = Buffer.buffer();
+        final String last = message(MESSAGES - 1);
+
+        client.get(port, "localhost", "/stream", response -> {
+            version.set(response.version());
+            response.handler(b -> {
+                body.appendBuffer(b);
+                if (body.length() >= MESSAGES * MESSAGE_SIZE && body.toString().contains(last)) {
+                    latch.countDown();
+                }
+            });
+            // Stop reading so the stream's flow control window is exhausted, the server must keep the writes.
+            response.pause();
+            vertx.setTimer(1000, id -> response.resume());
+        }).putHeader("X-Atmosphere-Transport", "streaming").end();
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(version.get(), HttpVersion.HTTP_2);
+        assertEquals(StreamingHandler.writes.get(), MESSAGES);
+
+        // Every message has been delivered, in order, over the same stream.
+        String received = body.toString();
+        int position = -1;
+        for (int i = 0; i < MESSAGES; i++) {
+            int next = received.indexOf(message(i), position + 1);
+            assertTrue(next > position, "Message " + i + " missing or out of order");
+            position = next;
+        }
+    }
+
+    @Test
+    public void http2MultiplexesSubscriptions() throws Exception {
+        Subscriptions http1 = subscribe(HttpVersion.HTTP_1_1);
+        Subscriptions http2 = subscribe(HttpVersion.HTTP_2);
+        logger.info("{} subscriptions: HTTP/1.1 {} connections {} KB heap, HTTP/2 {} connections {} KB heap",
+                SUBSCRIPTIONS, http1.connections, http1.heap / 1024, http2.connections, http2.heap / 1024);
+
+        // HTTP/1.1 needs a connection per suspended request, HTTP/2 multiplexes them over a single one.
+        assertEquals(http1.connections, SUBSCRIPTIONS);
+        assertEquals(http2.connections, 1);
+    }
+
+    /**
+     * Suspend {@link #SUBSCRIPTIONS} streaming requests, then return the number of connections they use and the
+     * heap used by the client and the server to hold them.
+     */
+    private Subscriptions subscribe(HttpVersion version) throws Exception {
+        SubscriptionHandler.connections.clear();
+        SubscriptionHandler.subscribed = new CountDownLatch(SUBSCRIPTIONS);
+
+        HttpServer server = vertx.createHttpServer(new HttpServerOptions()
+                .setHttp2ClearTextEnabled(true)
+                .setInitialSettings(new Http2Settings().setMaxConcurrentStreams(SUBSCRIPTIONS)));
+        new VertxAtmosphere.Builder()
+                .resource(SubscriptionHandler.class)
+                .url("/subscribe")
+                .webroot(webroot.getPath())
+                .httpServer(server)
+                .vertx(vertx)
+                .build();
+        int port = listen(server);
+        HttpClient subscriber = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(version)
+                .setHttp2ClearTextUpgrade(false)
+                .setMaxPoolSize(SUBSCRIPTIONS));
+
+        long heap = usedHeap();
+        try {
+            for (int i = 0; i < SUBSCRIPTIONS; i++) {
+                subscriber.get(port, "localhost", "/subscribe", response -> {
+                }).putHeader("X-Atmosphere-Transport", "streaming").end();
+            }
+            assertTrue(SubscriptionHandler.subscribed.await(120, TimeUnit.SECONDS));
+            return new Subscriptions(SubscriptionHandler.connections.size(), usedHeap() - heap);
+        } finally {
+            final CountDownLatch closed = new CountDownLatch(1);
+            subscriber.close();
+            server.close(v -> closed.countDown());
+            closed.await(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static int listen(HttpServer server) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        server.listen(0, "localhost", result -> latch.countDown());
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return server.actualPort();
+    }
+
+    private static String message(int i) {
+        StringBuilder b = new StringBuilder(MESSAGE_SIZE).append("message-").append(i).append(':');
+        while (b.length() < MESSAGE_SIZE - 1) {
+            b.append('x');
+        }
+        return b.append('\n').toString();
+    }
+
+    @AtmosphereHandlerService(path = "/stream")
+    public final static class StreamingHandler implements AtmosphereHandler {
+        static final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public void onRequest(AtmosphereResource r) throws IOException {
+            r.suspend();
+            for (int i = 0; i < MESSAGES; i++) {
+                r.getResponse().write(message(i));
+                writes.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onStateChange(AtmosphereResourceEvent event) throws IOException {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    @AtmosphereHandlerService(path = "/subscribe")
+    public final static class SubscriptionHandler implements AtmosphereHandler {
+        // The client address and port of every subscription, one per connection.
+        static final Set<String> connections = ConcurrentHashMap.newKeySet();
+        static volatile CountDownLatch subscribed = new CountDownLatch(0);
+
+        @Override
+        public void onRequest(AtmosphereResource r) throws IOException {
+            connections.add(r.getRequest().getRemoteAddr() + ":" + r.getRequest().getRemotePort());
+            r.suspend();
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onStateChange(AtmosphereResourceEvent event) throws IOException {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private final static class Subscriptions {
+        private final int connections;
+        private final long heap;
+
+        private Subscriptions(int connections, long heap) {
+            this.connections = connections;
+            this.heap = heap;
+        }
+    }
+}
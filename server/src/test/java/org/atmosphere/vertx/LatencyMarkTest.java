@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class LatencyMarkTest {
+
+    @Test
+    public void takeMarkOfDeliveredMessage() {
+        LatencyTracer.BroadcasterLatency latency = new LatencyTracer.BroadcasterLatency();
+        LatencyMark mark = new LatencyMark();
+        Object message = "message";
+
+        mark.mark(latency, System.nanoTime(), message);
+        assertSame(mark.take(message), latency);
+        assertNull(mark.take(message));
+    }
+
+    @Test
+    public void discardMarkOfAbortedDelivery() {
+        LatencyTracer.BroadcasterLatency latency = new LatencyTracer.BroadcasterLatency();
+        LatencyMark mark = new LatencyMark();
+        Object aborted = "aborted";
+
+        // A later filter aborted the delivery, the next write is another message.
+        mark.mark(latency, System.nanoTime(), aborted);
+        assertNull(mark.take("unrelated"));
+        assertNull(mark.take(aborted));
+    }
+}
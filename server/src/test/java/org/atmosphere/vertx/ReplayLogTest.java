@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ReplayLogTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("replay-log").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void appendAndReplayAfterSequence() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 4096, -1, -1, ReplayLog.FsyncPolicy.INTERVAL)) {
+            for (int i = 1; i <= 10; i++) {
+                assertEquals(log.append(bytes("message-" + i)), i);
+            }
+
+            List<String> messages = new ArrayList<String>();
+            List<Long> sequences = new ArrayList<Long>();
+            long last = log.replay(4, 100, (b, sequence) -> {
+                messages.add(string(b));
+                sequences.add(sequence);
+            });
+
+            assertEquals(last, 10);
+            assertEquals(messages.size(), 6);
+            assertEquals(messages.get(0), "message-5");
+            assertEquals(messages.get(5), "message-10");
+            assertEquals(sequences.get(0).longValue(), 5);
+            assertEquals(replay(log, 10, 100).size(), 0);
+            assertEquals(replay(log, 0, 3).size(), 3);
+        }
+    }
+
+    @Test
+    public void replayedMessagesAreReadOnly() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 4096, -1, -1, ReplayLog.FsyncPolicy.NEVER)) {
+            log.append(bytes("message"));
+            log.replay(0, 1, (b, sequence) -> assertTrue(b.isReadOnly()));
+        }
+    }
+
+    @Test
+    public void rollSegments() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 1024, -1, -1, ReplayLog.FsyncPolicy.INTERVAL)) {
+            for (int i = 1; i <= 200; i++) {
+                log.append(bytes("message-" + i));
+            }
+
+            assertTrue(segments() > 1);
+            List<String> messages = replay(log, 0, 1000);
+            assertEquals(messages.size(), 200);
+            assertEquals(messages.get(199), "message-200");
+
+            // The sequence is resolved in a segment other than the first one.
+            messages = replay(log, 150, 1000);
+            assertEquals(messages.size(), 50);
+            assertEquals(messages.get(0), "message-151");
+        }
+    }
+
+    @Test
+    public void retainMaxBytes() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 1024, -1, 3 * 1024, ReplayLog.FsyncPolicy.INTERVAL)) {
+            for (int i = 1; i <= 500; i++) {
+                log.append(bytes("message-" + i));
+            }
+
+            assertTrue(segments() <= 3);
+            assertTrue(log.firstSequence() > 1);
+
+            List<String> messages = replay(log, 0, 1000);
+            assertEquals(messages.get(0), "message-" + log.firstSequence());
+            assertEquals(messages.get(messages.size() - 1), "message-500");
+        }
+    }
+
+    @Test
+    public void retainTime() throws Exception {
+        try (ReplayLog log = new ReplayLog(directory, 1024, 50, -1, ReplayLog.FsyncPolicy.INTERVAL)) {
+            for (int i = 1; i <= 100; i++) {
+                log.append(bytes("message-" + i));
+            }
+            assertTrue(segments() > 1);
+
+            Thread.sleep(100);
+            log.flush();
+
+            // The last segment is always retained.
+            assertEquals(segments(), 1);
+            assertEquals(log.lastSequence(), 100);
+        }
+    }
+
+    @Test
+    public void recoverAfterReopen() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 1024, -1, -1, ReplayLog.FsyncPolicy.ALWAYS)) {
+            for (int i = 1; i <= 100; i++) {
+                log.append(bytes("message-" + i));
+            }
+        }
+
+        try (ReplayLog log = new ReplayLog(directory, 1024, -1, -1, ReplayLog.FsyncPolicy.ALWAYS)) {
+            assertEquals(log.lastSequence(), 100);
+            assertEquals(log.append(bytes("message-101")), 101);
+
+            List<String> messages = replay(log, 95, 1000);
+            assertEquals(messages.size(), 6);
+            assertEquals(messages.get(0), "message-96");
+            assertEquals(messages.get(5), "message-101");
+        }
+    }
+
+    @Test
+    public void ignoreTornRecordWhenRecovering() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 4096, -1, -1, ReplayLog.FsyncPolicy.ALWAYS)) {
+            log.append(bytes("message-1"));
+            log.append(bytes("message-2"));
+        }
+
+        // Corrupt the last byte of the second record, as if its page hadn't been written back.
+        File segment = directory.listFiles()[0];
+        int header = 4 + 4 + 8 + 8;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(2 * header + 2 * "message-1".length() - 1);
+            raf.write('x');
+        }
+
+        try (ReplayLog log = new ReplayLog(directory, 4096, -1, -1, ReplayLog.FsyncPolicy.ALWAYS)) {
+            assertEquals(log.lastSequence(), 1);
+            assertEquals(log.append(bytes("message-3")), 2);
+
+            List<String> messages = replay(log, 0, 10);
+            assertEquals(messages.size(), 2);
+            assertEquals(messages.get(1), "message-3");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectMessageLargerThanSegment() throws IOException {
+        try (ReplayLog log = new ReplayLog(directory, 1024, -1, -1, ReplayLog.FsyncPolicy.NEVER)) {
+            log.append(new byte[1024]);
+        }
+    }
+
+    private int segments() {
+        return directory.listFiles((dir, name) -> name.endsWith(".log")).length;
+    }
+
+    private static List<String> replay(ReplayLog log, long afterSequence, int max) {
+        final List<String> messages = new ArrayList<String>();
+        log.replay(afterSequence, max, (b, sequence) -> messages.add(string(b)));
+        return messages;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer b) {
+        return StandardCharsets.UTF_8.decode(b).toString();
+    }
+}
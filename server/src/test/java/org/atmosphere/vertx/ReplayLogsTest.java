@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.netty.buffer.ByteBuf;
+import org.atmosphere.cpr.BroadcastFilter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class ReplayLogsTest {
+
+    private File directory;
+    private ReplayLogs replayLogs;
+
+    @BeforeMethod
+    public void create() throws IOException {
+        directory = Files.createTempDirectory("replay-logs").toFile();
+        replayLogs = new ReplayLogs(directory).segmentSize(4096);
+    }
+
+    @AfterMethod
+    public void delete() {
+        replayLogs.close();
+        delete(directory);
+    }
+
+    @Test
+    public void deliverBroadcastedMessageUnchanged() {
+        assertEquals(filter("/chat", "hello"), "hello");
+        assertEquals(filter("/chat", "world"), "world");
+        assertEquals(replayLogs.lastSequence("/chat"), 2);
+        assertEquals(replayLogs.replay("/chat", 0), messages("hello", "world"));
+    }
+
+    @Test
+    public void prefixBroadcastedMessageWithSequence() {
+        replayLogs.separator("|");
+        assertEquals(filter("/chat", "hello"), "1|hello");
+        assertEquals(filter("/chat", "world"), "2|world");
+        assertEquals(filter("/news", "hello"), "1|hello");
+        assertEquals(replayLogs.lastSequence("/chat"), 2);
+    }
+
+    @Test
+    public void replayPrefixedMessages() {
+        replayLogs.separator("|");
+        filter("/chat", "one");
+        filter("/chat", "two");
+        filter("/chat", "three");
+
+        assertEquals(replayLogs.replay("/chat", 1), messages("2|two", "3|three"));
+
+        final List<Object> messages = new ArrayList<Object>();
+        assertEquals(replayLogs.replay("/chat", 0, (ByteBuf b) -> messages.add(b.toString(StandardCharsets.UTF_8))), 3);
+        assertEquals(messages, messages("1|one", "2|two", "3|three"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void logSerializedMessages() {
+        List<String> pojo = Arrays.asList("ACME", "42");
+        assertEquals(filter("/quotes", pojo), pojo);
+        assertEquals(replayLogs.lastSequence("/quotes"), 0);
+
+        replayLogs.serializer(m -> String.join(",", (List<String>) m));
+        assertEquals(filter("/quotes", pojo), pojo);
+        assertEquals(replayLogs.replay("/quotes", 0), messages("ACME,42"));
+    }
+
+    @Test
+    public void replayedMessagesAreNotLoggedAgain() {
+        filter("/chat", "one");
+        filter("/chat", "two");
+
+        List<Object> replayed = replayLogs.replay("/chat", 1);
+        assertEquals(ReplayLogs.replayed(replayed.get(0)), 2);
+        assertEquals(ReplayLogs.replayed("two"), -1);
+
+        // The Broadcaster filters the replayed messages before delivering them.
+        assertEquals(filter("/chat", replayed.get(0)), "two");
+        assertEquals(replayLogs.lastSequence("/chat"), 2);
+    }
+
+    @Test
+    public void deliverMessageTooLargeToBeLogged() {
+        String message = new String(new char[8192]).replace('\0', 'x');
+        assertEquals(filter("/chat", message), message);
+        assertEquals(replayLogs.lastSequence("/chat"), 0);
+    }
+
+    private Object filter(String broadcasterId, Object message) {
+        BroadcastFilter.BroadcastAction a = replayLogs.filter(broadcasterId, message, message);
+        return a.message();
+    }
+
+    private static List<Object> messages(Object... messages) {
+        List<Object> l = new ArrayList<Object>();
+        for (Object m : messages) {
+            l.add(m);
+        }
+        return l;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
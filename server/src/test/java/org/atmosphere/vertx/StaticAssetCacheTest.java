@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpServer;
+import io.vertx.ext.web.Router;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class StaticAssetCacheTest {
+
+    private Vertx vertx;
+    private HttpClient client;
+    private File webroot;
+
+    @BeforeMethod
+    public void start() throws IOException {
+        vertx = Vertx.vertx();
+        client = vertx.createHttpClient();
+        webroot = Files.createTempDirectory("webroot").toFile();
+    }
+
+    @AfterMethod
+    public void stop() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        client.close();
+        vertx.close(v -> closed.countDown());
+        closed.await(10, TimeUnit.SECONDS);
+        delete(webroot);
+    }
+
+    @Test
+    public void revalidateAfterCacheEntryTimeout() throws Exception {
+        File asset = new File(webroot, "app.js");
+        write(asset, "var version = 1;");
+        int port = serve(new StaticAssetCache(vertx, webroot.getPath(), 1024 * 1024, 100));
+
+        assertEquals(get(port, "/app.js")[1], "var version = 1;");
+
+        write(asset, "var version = 22;");
+        // Served from memory until the entry times out.
+        assertEquals(get(port, "/app.js")[1], "var version = 1;");
+
+        Thread.sleep(200);
+        assertEquals(get(port, "/app.js")[1], "var version = 22;");
+    }
+
+    @Test
+    public void contentTypeOfWebAssets() throws Exception {
+        write(new File(webroot, "app.js"), "var a;");
+        write(new File(webroot, "style.css"), "a {}");
+        write(new File(webroot, "font.woff2"), "woff2");
+        write(new File(webroot, "data.unknown"), "?");
+        int port = serve(new StaticAssetCache(vertx, webroot.getPath(), 1024 * 1024));
+
+        assertEquals(get(port, "/app.js")[0], "application/javascript;charset=UTF-8");
+        assertEquals(get(port, "/style.css")[0], "text/css;charset=UTF-8");
+        assertEquals(get(port, "/font.woff2")[0], "font/woff2");
+        assertEquals(get(port, "/data.unknown")[0], "application/octet-stream");
+    }
+
+    private int serve(StaticAssetCache cache) throws InterruptedException {
+        Router router = Router.router(vertx);
+        router.route().handler(cache);
+        HttpServer server = vertx.createHttpServer().requestHandler(router::accept);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        server.listen(0, "localhost", result -> latch.countDown());
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return server.actualPort();
+    }
+
+    // Return the content type and the body.
+    private String[] get(int port, String path) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String[]> result = new AtomicReference<String[]>();
+        client.getNow(port, "localhost", path, response -> response.bodyHandler(body -> {
+            result.set(new String[]{response.getHeader("Content-Type"), body.toString()});
+            latch.countDown();
+        }));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
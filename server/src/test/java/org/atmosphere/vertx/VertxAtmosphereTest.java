@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Async-IO.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.vertx;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class VertxAtmosphereTest {
+
+    private Vertx vertx;
+    private File webroot;
+
+    @BeforeMethod
+    public void start() throws IOException {
+        vertx = Vertx.vertx();
+        webroot = Files.createTempDirectory("webroot").toFile();
+    }
+
+    @AfterMethod
+    public void stop() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        vertx.close(v -> closed.countDown());
+        closed.await(10, TimeUnit.SECONDS);
+        webroot.delete();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void domainSocketRequiresNativeTransport() {
+        new VertxAtmosphere.Builder()
+                .url("/chat")
+                .webroot(webroot.getPath())
+                .domainSocket(new File(webroot, "atmosphere.sock").getPath())
+                .vertx(vertx)
+                .build();
+    }
+
+    @Test
+    public void listenHandlerNotifiedOfFailure() throws IOException, InterruptedException {
+        // Vert.x servers of the same instance share their port, the port must be bound outside Vert.x.
+        try (ServerSocket other = new ServerSocket(0, 50, InetAddress.getByName("localhost"))) {
+            assertFalse(listen(other.getLocalPort()).succeeded());
+        }
+    }
+
+    private AsyncResult<HttpServer> listen(int port) throws InterruptedException {
+        final CountDownLatch listened = new CountDownLatch(1);
+        final AtomicReference<AsyncResult<HttpServer>> result = new AtomicReference<AsyncResult<HttpServer>>();
+        new VertxAtmosphere.Builder()
+                .url("/chat")
+                .webroot(webroot.getPath())
+                .port(port)
+                .host("localhost")
+                .listenHandler(r -> {
+                    result.set(r);
+                    listened.countDown();
+                })
+                .vertx(vertx)
+                .build();
+
+        assertTrue(listened.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+}